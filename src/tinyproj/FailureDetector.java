@@ -0,0 +1,98 @@
+import java.util.*;
+
+// phi accrual failure detector: suspicion of each peer grows with the time since its last
+// heartbeat, measured against the distribution of its own recent heartbeat intervals
+public class FailureDetector {
+    public static final long HEARTBEAT_INTERVAL = Long.getLong("rcrt.heartbeatInterval", 200);
+    public static final double THRESHOLD = Double.parseDouble(
+        System.getProperty("rcrt.phiThreshold", "8")
+    );
+    private static final int WINDOW = 100;  // intervals kept per peer
+    private static final double MIN_STD_DEV = Long.getLong("rcrt.minStdDev", 50);
+
+    private static class History {
+        private final long[] intervals = new long[WINDOW];
+        private int count = 0, next = 0;
+        private double sum = 0, sumSq = 0;
+        private long last;
+
+        public History(long now) {
+            last = now;
+            // bootstrap as if heartbeats came at nominal rate
+            add(HEARTBEAT_INTERVAL - HEARTBEAT_INTERVAL / 4);
+            add(HEARTBEAT_INTERVAL + HEARTBEAT_INTERVAL / 4);
+        }
+
+        public void add(long interval) {
+            if (count == WINDOW) {
+                sum -= intervals[next];
+                sumSq -= (double) intervals[next] * intervals[next];
+            } else {
+                count += 1;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % WINDOW;
+            sum += interval;
+            sumSq += (double) interval * interval;
+        }
+
+        public double phi(long now) {
+            var mean = sum / count;
+            var stdDev = Math.max(Math.sqrt(Math.max(sumSq / count - mean * mean, 0)), MIN_STD_DEV);
+            var y = (now - last - mean) / stdDev;
+            // logistic approximation of normal cdf
+            var e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            if (now - last > mean) {
+                return -Math.log10(e / (1 + e));
+            } else {
+                return -Math.log10(1 - 1 / (1 + e));
+            }
+        }
+    }
+
+    // by peer id, which are dense ints such as registry ids, so a heartbeat only indexes
+    private History[] historyArray = new History[16];
+
+    public synchronized void heartbeat(int peer) {
+        var now = System.currentTimeMillis();
+        if (peer >= historyArray.length) {
+            historyArray = Arrays.copyOf(historyArray, Math.max(peer + 1, historyArray.length * 2));
+        }
+        var history = historyArray[peer];
+        if (history == null) {
+            historyArray[peer] = new History(now);
+        } else {
+            history.add(now - history.last);
+            history.last = now;
+        }
+    }
+
+    // never heard peer is fully suspected
+    public synchronized double phi(int peer) {
+        if (peer >= historyArray.length || historyArray[peer] == null) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return historyArray[peer].phi(System.currentTimeMillis());
+    }
+
+    public boolean isAvailable(int peer) {
+        return phi(peer) < THRESHOLD;
+    }
+
+    public synchronized BitSet available() {
+        var now = System.currentTimeMillis();
+        var peers = new BitSet(historyArray.length);
+        for (var peer = 0; peer < historyArray.length; peer += 1) {
+            if (historyArray[peer] != null && historyArray[peer].phi(now) < THRESHOLD) {
+                peers.set(peer);
+            }
+        }
+        return peers;
+    }
+
+    public synchronized void remove(int peer) {
+        if (peer < historyArray.length) {
+            historyArray[peer] = null;
+        }
+    }
+}
@@ -4,6 +4,8 @@ import java.nio.channels.*;
 import java.util.*;
 import java.util.logging.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 import java.io.*;
 
 public class Game {
@@ -22,12 +24,17 @@ public class Game {
 
         var name = args[2];
         var addr = generateAddress();
+        // replication group within tracker, so one tracker serves many independent games
+        var group = System.getProperty("rcrt.group", "default");
         var tracker = new Tracker(
-            name, addr, new InetSocketAddress(args[0], Integer.parseInt(args[1]))
+            group, name, addr, new InetSocketAddress(args[0], Integer.parseInt(args[1]))
         );
-        log.fine("game start: name = " + name + ", addr = " + addr);
-        var game = new Game(name, addr, tracker);
+        log.fine("game start: name = " + name + ", group = " + group + ", addr = " + addr);
+        var game = new Game(name, group, addr, tracker);
         game.tracker.query();
+        var input = new Thread(game::readInput, "input");
+        input.setDaemon(true);
+        input.start();
         try {
             while (true) {
                 var view = game.tracker.receiveView();
@@ -66,353 +73,1939 @@ public class Game {
     }
 
     private final String name;
+    private final String group;
     private final InetSocketAddress addr;
     private final Tracker tracker;
-    private Tracker.View view;
-    private Game(String name, InetSocketAddress addr, Tracker tracker) {
+    private volatile Tracker.View view;
+    private Game(
+        String name, String group, InetSocketAddress addr, Tracker tracker
+    ) throws Exception {
         this.name = name;
+        this.group = group;
         this.addr = addr;
         this.tracker = tracker;
         view = null;
+        ownId = registry.intern(name);
+        store = Store.open(name);
+        if (store != null) {
+            recovered = store.recover();
+            store.start(this::onDurable);
+            var checkpointer = new Thread(this::runCheckpoint, "checkpoint");
+            checkpointer.setDaemon(true);
+            checkpointer.start();
+        }
     }
 
-    private ServerSocketChannel server;
-    private Selector serverSel;
-    private SocketChannel backup;  // downlink for server
-    private SocketChannel client;  // uplink for client (including backup)
+    private ServerSocketChannel server;  // live since primary or backup, accepted by reactor 0
+    private volatile SocketChannel client;  // uplink for client (including backup)
     private App app;
-    private HashMap<String, WorkerThread> workerTable;
+    private final Store store;  // null if not persisted
+    // read from store at start, and taken up if this node starts the group afresh; a backup 
+    // still takes state from primary, as its log may hold mutations primary never committed
+    private App recovered;
+
+    // interns names of nodes this one deals with as dense ids, so per-player state lives in 
+    // arrays and bitsets and messages carry ints; ids are local to the node and never reused, 
+    // and a client sends the one its current primary assigned
+    private static class Registry {
+        private final HashMap<String, Integer> idTable = new HashMap<>();
+        private String[] nameArray = new String[16];
+        private int size = 0;
+
+        public synchronized int intern(String name) {
+            var id = idTable.get(name);
+            if (id != null) {
+                return id;
+            }
+            if (size == nameArray.length) {
+                nameArray = Arrays.copyOf(nameArray, size * 2);
+            }
+            nameArray[size] = name;
+            idTable.put(name, size);
+            size += 1;
+            return size - 1;
+        }
+
+        // null for an id never assigned, e.g. from a peer mixing up primaries
+        public synchronized String nameOf(int id) {
+            return id >= 0 && id < size ? nameArray[id] : null;
+        }
+    }
+    private final Registry registry = new Registry();
+    private final int ownId;
+    private volatile int playerId;  // assigned by current primary
+
+    // mailboxes by registry id of their players, and the set of ids that have one
+    private static class MailboxTable {
+        private PlayerMailbox[] mailboxArray = new PlayerMailbox[16];
+        private final BitSet liveSet = new BitSet();
+
+        public synchronized PlayerMailbox get(int id) {
+            return id >= 0 && id < mailboxArray.length ? mailboxArray[id] : null;
+        }
+
+        public synchronized void put(int id, PlayerMailbox mailbox) {
+            if (id >= mailboxArray.length) {
+                mailboxArray = Arrays.copyOf(mailboxArray, Math.max(id + 1, mailboxArray.length * 2));
+            }
+            mailboxArray[id] = mailbox;
+            liveSet.set(id);
+        }
+
+        public synchronized PlayerMailbox remove(int id) {
+            var mailbox = mailboxArray[id];
+            mailboxArray[id] = null;
+            liveSet.clear(id);
+            return mailbox;
+        }
+
+        public synchronized BitSet liveSet() {
+            return (BitSet) liveSet.clone();
+        }
+    }
+    private MailboxTable mailboxTable;
+    private ShardRouter router;  // live since primary
+    // primary set up, before that reactors only serve reads
+    private volatile boolean serving;
     private void startView(Tracker.View view) throws Exception {
         if (this.view != null) {
             assert view.id() > this.view.id();
             assert !view.primary().equals(this.view.primary()) ||
-                !view.backup().equals(this.view.backup());
+                !view.backupList().equals(this.view.backupList());
         }
 
-        if (view.primary().equals(name) && server == null) {
+        leaseExpiry = 0;
+        var reconnected = false;
+        if (!view.primary().equals(name) && client == null) {
+            connectPrimary(view);
+            reconnected = true;
+        }
+
+        // backup listens for lease reads, pulls and chain relays, after connecting since a 
+        // listening socket blocks other binds of the same address
+        var isBackup = view.backupList().contains(name);
+        if ((view.primary().equals(name) || isBackup) && server == null) {
             server = ServerSocketChannel.open();
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
             server.bind(addr);
             server.configureBlocking(false);
-            serverSel = Selector.open();
-            server.register(serverSel, SelectionKey.OP_ACCEPT);
-        }
-        
-        if (!view.primary().equals(name)) {
-            // wait until primary up to date and set up
-            if (this.view != null && this.view.primary().equals(view.primary())) {
-                Thread.sleep(600);  // 500ms previous client guard exit + 100ms redundancy
-            } else {            
-                // 1000ms detection + 200ms reaction
-                Thread.sleep(1200);
+            reactors = new Reactor[Integer.getInteger(
+                "rcrt.reactors", Runtime.getRuntime().availableProcessors()
+            )];
+            for (var i = 0; i < reactors.length; i += 1) {
+                reactors[i] = new Reactor(i);
+            }
+            server.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
+            for (var reactor : reactors) {
+                reactor.start();
             }
-        }
-        if (!view.primary().equals(name) && client == null) {
-            client = SocketChannel.open();
-            client.bind(addr);
-
-            // client.connect(view.serverAddr());
-            // simple hack to shorten connecting timeout, only work for localhost setup
-            client.configureBlocking(false);
-            log.entering(SocketChannel.class.getName(), "connect");
-            client.connect(view.serverAddr());
-            log.exiting(SocketChannel.class.getName(), "connect");
-            Thread.sleep(1);
-            if (!client.finishConnect()) {
-                throw new ConnectException();
-            }
-            client.configureBlocking(true);
-            log.fine("connected");
-
-            Transport.send(
-                client, Transport.HelloMessage.TYPE, 
-                new Transport.HelloMessage(name)
-            );
         }
 
-        if (view.backup() != null && view.backup().equals(name)) {
-            assert app == null;
+        // a backup that stays with the same primary keeps its replica
+        if (isBackup && (reconnected || this.view == null || !this.view.backupList().contains(name))) {
             log.entering(Game.class.getName(), "initBackup");
             Transport.send(
                 client, Transport.InitBackupRequestMessage.TYPE,
-                new Transport.InitBackupRequestMessage(view.id())
+                new Transport.InitBackupRequestMessage(view.id(), name)
             );
             // TODO server crash from now on...
-            var buf = Transport.socketReceiveRaw(client);
-            assert buf.getInt() == Transport.InitBackupReplyMessage.TYPE;
-            var msgLen = buf.getInt();
-            var msg = (Transport.InitBackupReplyMessage) Transport.parse(buf);
-            app = msg.app();
+            // state comes in chunks, then mutations made during the transfer come as a 
+            // regular batch which runClient applies
+            ByteBuffer state = null;
+            while (state == null || state.hasRemaining()) {
+                var buf = Transport.socketReceiveRaw(client);
+                int msgType = buf.getInt(), msgLen = buf.getInt();
+                if (msgType == Transport.InitBackupReplyMessage.TYPE) {
+                    var msg = (Transport.InitBackupReplyMessage) Transport.parse(buf);
+                    if (state == null) {
+                        state = ByteBuffer.allocate(msg.size());
+                    }
+                    state.position(msg.from());
+                    state.put(msg.data());
+                    continue;
+                }
+                // replies of pipelined requests, and answers to last heartbeats of the guard
+                if (msgType == Transport.ReplyMessage.TYPE) {
+                    complete((Transport.ReplyMessage) Transport.parse(buf));
+                } else {
+                    assert msgType == Transport.HeartbeatOkMessage.TYPE;
+                }
+            }
+            var initApp = App.read(state.flip());
+            synchronized (appMutex) {
+                app = initApp;
+                resetStore();
+            }
+            checkpointReset();
             log.exiting(
                 Game.class.getName(), 
                 "initBackup", 
-                "player set = " + app.playerSet()
+                "seq = " + initApp.seq() + ", player set = " + initApp.playerSet()
             );
         }
         if (view.primary().equals(name)) {
-            assert backup == null || this.view.id() == 1;
-            if (this.view != null && this.view.primary().equals(name)) {
-                assert !view.backup().equals(this.view.backup());
-            } else {
-                assert this.view == null || this.view.backup().equals(name);
+            if (this.view == null || !this.view.primary().equals(name)) {
+                assert this.view == null || this.view.backupList().contains(name);
                 if (this.view == null) {
                     assert view.id() == 1;
-                    app = new App();
-                    app.createPlayer(name);
+                    synchronized (appMutex) {
+                        if (recovered != null) {
+                            log.info("take recovered state: seq = " + recovered.seq());
+                            app = recovered;
+                        } else {
+                            app = new App(tracker.n, tracker.k);
+                        }
+                        resetStore();
+                        app.addMember(name);
+                        app.createPlayer(name, group);
+                    }
+                    checkpointReset();
+                } else {
+                    pullState(view);
                 }
-                workerTable = new HashMap<>();
-                for (var name : app.playerSet()) {
-                    workerTable.put(name, new WorkerThread(name, null, this));
-                    workerTable.get(name).start();
+                router = new ShardRouter();
+                router.updateMap();  // before mailboxes decide where their players go
+                router.start();
+                mailboxTable = new MailboxTable();
+                // players of other groups are watched by primary of their own group
+                for (var name : app.memberSet()) {
+                    var mailbox = new PlayerMailbox(name, null, this);
+                    mailboxTable.put(registry.intern(name), mailbox);
+                    mailbox.open();
                 }
             }
         }
         this.view = view;
+        serving = view.primary().equals(name);
+        if (serving) {
+            for (var reactor : reactors) {
+                reactor.selector.wakeup();  // for frames held until now
+            }
+        }
+        openRequests();
+    }
+
+    // appMutex guards app and is only held for local mutation, never across network
+    private static final int CONNECT_RETRY = 10;
+    private static final long CONNECT_TIMEOUT = 200;
+
+    // connect and say hello as soon as the new primary is serving, i.e. it replies HelloOk, 
+    // retry with backoff until it adopts the view, or throw ConnectException after all
+    private void connectPrimary(Tracker.View view) throws Exception {
+        var backoff = 5L;
+        for (var retry = 0; ; retry += 1) {
+            var channel = SocketChannel.open();
+            if (server == null) {
+                // hold own address until listening on it
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                channel.bind(addr);
+            }
+            try (var sel = Selector.open()) {
+                channel.configureBlocking(false);
+                log.entering(SocketChannel.class.getName(), "connect", "retry = " + retry);
+                channel.connect(view.serverAddr());
+                var key = channel.register(sel, SelectionKey.OP_CONNECT);
+                if (sel.select(CONNECT_TIMEOUT) == 0 || !channel.finishConnect()) {
+                    throw new ConnectException();
+                }
+                Transport.send(
+                    channel, Transport.HelloMessage.TYPE, 
+                    new Transport.HelloMessage(name)
+                );
+                key.interestOps(SelectionKey.OP_READ);
+                var decoder = new Transport.FrameDecoder();
+                ByteBuffer buf;
+                while ((buf = decoder.next()) == null) {
+                    sel.selectedKeys().clear();
+                    if (sel.select(CONNECT_TIMEOUT) == 0 || !decoder.read(channel)) {
+                        throw new ConnectException();
+                    }
+                }
+                int msgType = buf.getInt(), msgLen = buf.getInt();  // parse reads type behind
+                assert msgType == Transport.HelloOkMessage.TYPE;
+                var msg = (Transport.HelloOkMessage) Transport.parse(buf);
+                log.exiting(SocketChannel.class.getName(), "connect", msg);
+                playerId = msg.player();
+                key.cancel();
+                sel.selectNow();  // deregister before switching mode
+                channel.configureBlocking(true);
+                client = channel;
+                return;
+            } catch (ConnectException e) {
+                // reset instead of close, which leaves own address in TIME_WAIT against retry
+                if (channel.isOpen()) {
+                    channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+                }
+                channel.close();
+                if (retry == CONNECT_RETRY) {
+                    throw e;
+                }
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, 1000);
+            }
+        }
     }
 
     private final Object appMutex = new Object();
+    // syncBarrier guards replicaTable and following sync states, order: syncBarrier -> appMutex
     private final Object syncBarrier = new Object();
-    private Thread inSync;
-    private boolean syncDone = true;
+    // max number of SyncMessage in flight
+    private static final int SYNC_WINDOW = Integer.getInteger("rcrt.syncWindow", 4);
+    // chain replication: primary sends batches to first backup only, every backup relays them 
+    // to the next one in view, and a batch commits when all backups have applied it; otherwise 
+    // primary sends to every backup and commits on SYNC_QUORUM acks (0 for all of them), so a 
+    // slow backup is skipped, and gets the batches it missed once its window opens again
+    private static final boolean CHAIN = Boolean.getBoolean("rcrt.chain");
+    private static final int SYNC_QUORUM = Integer.getInteger("rcrt.syncQuorum", 0);
+    // mutations held for a slow backup before it is streamed a copy of state instead
+    private static final int SYNC_BACKLOG = Integer.getInteger("rcrt.syncBacklog", 64 * 1024);
+
+    // backup that has taken InitBackup, by name
+    private static class Replica {
+        final String name;
+        final Transport.Connection conn;
+        final ArrayDeque<Long> inSync = new ArrayDeque<>();  // last seq of batches in flight
+        // drained but not sent yet, up to backlogSeq, as window is full or a stream is going
+        final ArrayList<App.Mutation> backlog = new ArrayList<>();
+        long backlogSeq;
+        boolean resyncing = false;  // a copy of state is on its way
+        boolean streaming = false;  // and its stream has not been fully queued yet
+        long syncedSeq;  // highest seq acked
+        long leaseGranted = 0;
+
+        Replica(String name, Transport.Connection conn, long syncedSeq) {
+            this.name = name;
+            this.conn = conn;
+            this.syncedSeq = syncedSeq;
+        }
+    }
+    private final HashMap<String, Replica> replicaTable = new HashMap<>();
+    private long sentSeq;  // highest seq sent to backups
+
+    // backups serve reads within a lease renewed by every heartbeat, and primary never commits 
+    // without a backup before the lease it granted runs out, so those reads see every commit; 
+    // backup counts its lease from heartbeat send, which precedes primary's grant
+    private static final long LEASE = Long.getLong(
+        "rcrt.lease", 2 * FailureDetector.HEARTBEAT_INTERVAL
+    );
+    // a backup may miss batches committed by others, so it must not serve reads on its own, 
+    // and a new primary pulls the most advanced state from the rest
+    private static final boolean PARTIAL_SYNC = !CHAIN && SYNC_QUORUM != 0;
+    private volatile long leaseExpiry;  // of backup
+    // a dropped backup may still serve reads until the lease it was granted runs out, so 
+    // commits stay at fenceSeq until fenceExpiry; written with syncBarrier held
+    private long fenceSeq;
+    private volatile long fenceExpiry = 0;
+
+    // its connection is closed unless it is `keep`, on which the backup asks to start over
+    private void dropReplica(String name, Transport.Connection keep) throws Exception {
+        synchronized (syncBarrier) {
+            var joiner = joinTable.remove(name);  // its stream ends unused
+            if (joiner != null && joiner.conn != keep) {
+                joiner.conn.close();
+            }
+            var replica = replicaTable.get(name);
+            if (replica == null) {
+                return;
+            }
+            // usually expired already, as backup stops heartbeat long before it is detected
+            var now = System.currentTimeMillis();
+            if (replica.leaseGranted > now) {
+                log.info("fence commits for backup lease: " + (replica.leaseGranted - now) + "ms");
+                if (fenceExpiry <= now) {
+                    fenceSeq = commitSeq();
+                }
+                fenceExpiry = Math.max(fenceExpiry, replica.leaseGranted);
+            }
+            replicaTable.remove(name);
+            if (replica.conn != keep) {
+                replica.conn.close();
+            }
+            flushSync();  // let waiters skip its ack
+        }
+    }
+
+    // backup that is taking the stream of state; batches drained for sync meanwhile are kept 
+    // as its log tail, sent right after the last chunk, and it joins replicaTable from then on
+    private static class Joiner {
+        final String name;
+        final Transport.Connection conn;
+        final long seq;  // of the copy streamed
+        final ArrayList<App.Mutation> tail = new ArrayList<>();  // up to sentSeq
+
+        Joiner(String name, Transport.Connection conn, long seq) {
+            this.name = name;
+            this.conn = conn;
+            this.seq = seq;
+        }
+    }
+    private final HashMap<String, Joiner> joinTable = new HashMap<>();  // guarded by syncBarrier
+    private static final int INIT_CHUNK = Integer.getInteger("rcrt.initChunk", 64 * 1024);
+
+    // streams a copy of app taken at its current seq to a new backup on its own thread, so 
+    // only the copy holds appMutex and commits go on meanwhile without waiting for it
+    private void initBackup(String name, Transport.Connection conn) {
+        Joiner joiner;
+        App copy;
+        synchronized (syncBarrier) {
+            synchronized (appMutex) {
+                copy = app.copy();
+            }
+            // mutations pending at the copy are in it, and it skips them when they come 
+            // in the tail or later batches
+            joiner = new Joiner(name, conn, copy.seq());
+            joinTable.put(name, joiner);  // an unfinished stream to same backup ends unused
+        }
+        var thread = new Thread(() -> {
+            try {
+                streamState(joiner, copy);
+            } catch (Throwable e) {
+                log.throwing(Game.class.getName(), "init backup", e);
+                System.exit(1);
+            }
+        }, "init-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void streamState(Joiner joiner, App copy) throws Exception {
+        log.info("init backup: " + joiner.name + ", seq = " + joiner.seq);
+        if (!streamCopy(joiner.conn, copy)) {
+            log.info("init backup: " + joiner.name + " disconnected");
+            return;
+        }
+        synchronized (syncBarrier) {
+            if (joinTable.get(joiner.name) != joiner) {
+                return;  // dropped or started over during the stream
+            }
+            joinTable.remove(joiner.name);
+            var replica = new Replica(joiner.name, joiner.conn, joiner.seq);
+            if (!joiner.tail.isEmpty()) {
+                Transport.send(
+                    joiner.conn, Transport.SyncMessage.TYPE,
+                    new Transport.SyncMessage(sentSeq, joiner.tail)
+                );
+                replica.inSync.add(sentSeq);
+            }
+            log.info(
+                "backup joined: " + joiner.name + ", seq = " + joiner.seq + 
+                ", tail = " + joiner.tail.size()
+            );
+            replicaTable.put(joiner.name, replica);
+            flushSync();
+        }
+    }
+
+    // off both locks, false if connection is closed meanwhile
+    private boolean streamCopy(Transport.Connection conn, App copy) throws Exception {
+        var buf = copy.encode();
+        var size = buf.remaining();
+        for (var from = 0; from < size; from += INIT_CHUNK) {
+            // a few chunks in flight, so the stream does not pile up in memory and batches 
+            // to other backups are not queued behind it on a shared reactor
+            if (!conn.awaitQueued(2 * INIT_CHUNK)) {
+                return false;
+            }
+            var data = Arrays.copyOfRange(buf.array(), from, Math.min(from + INIT_CHUNK, size));
+            Transport.send(
+                conn, Transport.InitBackupReplyMessage.TYPE,
+                new Transport.InitBackupReplyMessage(size, from, data)
+            );
+        }
+        return true;
+    }
+
+    private Reactor[] reactors;  // I/O loops of accepted connections, live since first primary view
+    private static record ServerEvent(Transport.Connection conn, Object msg) {}
+    // messages that may end runServer, handled on its thread
+    private final LinkedBlockingQueue<ServerEvent> serverEvents = new LinkedBlockingQueue<>();
+    // backup crash && no available peer
+    private volatile boolean pendingSwitchBackup;
+    // primary's view of all other nodes, or client's view of primary
+    private final FailureDetector detector = new FailureDetector();
 
     private void runServer() throws Exception {
-        var heartbeatSet = new HashSet<String>();
-        // 1200ms waiting in startView + 200ms reaction + 100ms redundant
-        var nextCheckHearbeat = System.currentTimeMillis() + 1500;
-        // pendingSwitchBackup == backup crash && hearbeatSet is {}
-        var pendingSwitchBackup = false;
+        // for clients of previous primary to detect its failure and reconnect
+        var nextCheckHearbeat = System.currentTimeMillis() + 5 * FailureDetector.HEARTBEAT_INTERVAL;
+        pendingSwitchBackup = false;
         while (true) {
             var now = System.currentTimeMillis();
             if (now > nextCheckHearbeat && !pendingSwitchBackup) {
-                log.fine("check: heartbeat set = " + heartbeatSet);
-                if (!heartbeatSet.contains(view.backup())) {
-                    backup = null;  // disable backup before mutate app
+                var availableSet = detector.available();
+                // log.fine("check: available set = " + availableSet);
+                for (var backup : view.backupList()) {
+                    if (!detector.isAvailable(registry.intern(backup))) {
+                        dropReplica(backup, null);  // disable backup before mutate app
+                    }
                 }
 
-                var iter = workerTable.entrySet().iterator();
-                while (iter.hasNext()) {
-                    var entry = iter.next();
-                    if (!heartbeatSet.contains(entry.getKey()) && !entry.getKey().equals(name)) {
-                        entry.getValue().interrupt();
-                        iter.remove();
-                    }
+                var failedSet = mailboxTable.liveSet();
+                failedSet.andNot(availableSet);
+                failedSet.clear(ownId);
+                for (var id = failedSet.nextSetBit(0); id >= 0; id = failedSet.nextSetBit(id + 1)) {
+                    log.info("player fail: " + registry.nameOf(id) + ", phi = " + detector.phi(id));
+                    mailboxTable.remove(id).remove();
+                    detector.remove(id);
                 }
 
-                if (!heartbeatSet.contains(view.backup())) {
-                    if (!heartbeatSet.isEmpty()) {
-                        var nextBackup = heartbeatSet.iterator().next();
-                        log.info("backup fail: " + view.backup() + ", next backup = " + nextBackup);
-                        tracker.playerFail(view.id(), view.backup(), nextBackup);
+                var candidateSet = (BitSet) availableSet.clone();
+                candidateSet.clear(ownId);
+                for (var backup : view.backupList()) {
+                    candidateSet.clear(registry.intern(backup));
+                }
+                var candidate = registry.nameOf(candidateSet.nextSetBit(0));  // null if none
+                // one failed backup per view change, the rest are found in the next view
+                for (var backup : view.backupList()) {
+                    if (availableSet.get(registry.intern(backup))) {
+                        continue;
+                    }
+                    if (candidate != null) {
+                        var nextBackup = candidate;
+                        log.info("backup fail: " + backup + ", next backup = " + nextBackup);
+                        tracker.playerFail(view.id(), backup, nextBackup);
+                        return;
+                    } else if (view.backupList().size() > 1) {
+                        log.info("backup fail: " + backup + ", no next backup so shrink");
+                        tracker.playerFail(view.id(), backup, null);
                         return;
                     } else {
                         log.info("next backup not show up yet so pending");
                         pendingSwitchBackup = true;
                     }
+                    break;
+                }
+                // e.g. promoted last backup, or shrunk view, fill it up again
+                if (
+                    !pendingSwitchBackup && candidate != null &&
+                    view.backupList().size() < tracker.replicas - 1
+                ) {
+                    log.info("recruit backup: " + candidate);
+                    tracker.playerFail(view.id(), null, candidate);
+                    return;
                 }
-                heartbeatSet.clear();
-                nextCheckHearbeat = System.currentTimeMillis() + 600;
+                nextCheckHearbeat = System.currentTimeMillis() + FailureDetector.HEARTBEAT_INTERVAL;
             }
 
-            if (pendingSwitchBackup) {
-                serverSel.select();
+            var fence = fenceExpiry;
+            if (fence != 0 && now >= fence) {
+                synchronized (syncBarrier) {
+                    if (fenceExpiry == fence) {
+                        fenceExpiry = 0;
+                        flushSync();  // commits held by the fence
+                    }
+                }
+            }
+            ServerEvent event;
+            var wakeup = pendingSwitchBackup ? Long.MAX_VALUE : nextCheckHearbeat;
+            if (fenceExpiry != 0) {
+                wakeup = Math.min(wakeup, fenceExpiry);
+            }
+            if (wakeup == Long.MAX_VALUE) {
+                event = serverEvents.take();
             } else {
-                serverSel.select(nextCheckHearbeat - now);
-            }
-            for (var k : serverSel.selectedKeys()) {
-                if (k.isAcceptable()) {
-                    assert k.channel() == server;
-                    var channel = server.accept();
-                    log.info("incoming connection: addr = " + channel.getRemoteAddress());
-                    channel.configureBlocking(false);
-                    channel.register(serverSel, SelectionKey.OP_READ);
+                event = serverEvents.poll(Math.max(wakeup - now, 1), TimeUnit.MILLISECONDS);
+            }
+            for (; event != null; event = serverEvents.poll()) {
+                var conn = event.conn();
+                if (event.msg() instanceof Transport.InitBackupRequestMessage msg) {
+                    log.fine(msg.toString());
+                    dropReplica(msg.name(), conn);  // it starts over from the stream
+                    initBackup(msg.name(), conn);
+
+                    // a backup joining the group
+                    if (msg.viewId() > view.id()) {
+                        tracker.query();
+                        return;
+                    }
+                } else if (event.msg() instanceof Transport.HeartbeatMessage msg) {
+                    if (pendingSwitchBackup) {
+                        var nextBackup = registry.nameOf(msg.player());
+                        log.fine("pending end: next backup = " + nextBackup);
+                        tracker.playerFail(view.id(), view.backupList().get(0), nextBackup);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    // one of the selector loops that read and handle messages from connected nodes
+    private class Reactor extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Transport.Connection> incoming;
+        private int nextReactor = 0;  // of reactor 0, which accepts
+        // peers learn this node is primary from tracker, maybe before startView is done; their 
+        // frames are held in arrival order instead of closing, which would leave TIME_WAIT 
+        // against their reconnect, and handled once serving, or dropped with their connection 
+        // when the peer gives up anyway
+        private static record Held(Transport.Connection conn, ByteBuffer frame, long deadline) {}
+        private final ArrayDeque<Held> heldQueue = new ArrayDeque<>();
+
+        public Reactor(int index) throws Exception {
+            super("reactor-" + index);
+            selector = Selector.open();
+            incoming = new ConcurrentLinkedQueue<>();
+        }
+
+        public void register(Transport.Connection conn) {
+            incoming.add(conn);
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    if (heldQueue.isEmpty()) {
+                        selector.select();
+                    } else if (serving) {
+                        selector.selectNow();
+                    } else {
+                        var wait = heldQueue.peekFirst().deadline() - System.currentTimeMillis();
+                        selector.select(Math.max(wait, 1));
+                    }
+                    Transport.Connection incomingConn;
+                    while ((incomingConn = incoming.poll()) != null) {
+                        incomingConn.register(selector);
+                    }
+                    releaseHeld();
+                    for (var k : selector.selectedKeys()) {
+                        if (k.channel() == server) {
+                            accept();
+                            continue;
+                        }
+                        var conn = (Transport.Connection) k.attachment();
+                        try {
+                            if (k.isWritable() && !conn.flush()) {
+                                throw new IOException();
+                            }
+                            if (!k.isReadable()) {
+                                continue;
+                            }
+                            if (!conn.decoder.read(conn.channel)) {
+                                throw new IOException();
+                            }
+                            // all complete frames of this read
+                            ByteBuffer buf;
+                            while ((buf = conn.decoder.next()) != null) {
+                                if (!hold(conn, buf)) {
+                                    handle(conn, buf);
+                                }
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            conn.close();
+                            continue;  // heartbeat to cover failure
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (Throwable e) {
+                log.throwing(Reactor.class.getName(), getName(), e);
+                System.exit(1);
+            }
+        }
+
+        // true if frame is kept for later, with every later frame of its connection
+        private boolean hold(Transport.Connection conn, ByteBuffer buf) {
+            var held = false;
+            for (var entry : heldQueue) {
+                held = held || entry.conn() == conn;
+            }
+            if (!held && (serving || replicaMessage(buf.getInt(buf.position())))) {
+                return false;
+            }
+            var frame = ByteBuffer.allocate(buf.remaining()).put(buf).flip();
+            heldQueue.add(new Held(conn, frame, System.currentTimeMillis() + CONNECT_TIMEOUT));
+            return true;
+        }
+
+        private void releaseHeld() throws Exception {
+            while (!heldQueue.isEmpty()) {
+                var held = heldQueue.peekFirst();
+                if (!serving && System.currentTimeMillis() < held.deadline()) {
+                    return;
+                }
+                heldQueue.pollFirst();
+                if (held.conn().isClosed()) {
+                    continue;
+                }
+                if (!serving) {
+                    held.conn().close();
                     continue;
                 }
+                try {
+                    handle(held.conn(), held.frame());
+                } catch (IOException | CancelledKeyException e) {
+                    held.conn().close();
+                }
+            }
+        }
 
-                var channel = (SocketChannel) k.channel();
-                var buf = Transport.socketReceiveRaw(channel);
-                if (buf == null) {
-                    k.cancel();
-                    continue;  // heartbeat to cover failure
+        private void accept() throws Exception {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                log.info("incoming connection: addr = " + channel.getRemoteAddress());
+                channel.configureBlocking(false);
+                reactors[nextReactor].register(new Transport.Connection(channel));
+                nextReactor = (nextReactor + 1) % reactors.length;
+            }
+        }
+
+        // served without primary role: reads, and state of this node as backup
+        private static boolean replicaMessage(int msgType) {
+            return msgType == Transport.ReadMessage.TYPE || msgType == Transport.PullMessage.TYPE || 
+                msgType == Transport.SyncMessage.TYPE || 
+                msgType == Transport.InitBackupReplyMessage.TYPE;
+        }
+
+        private void handle(Transport.Connection conn, ByteBuffer buf) throws Exception {
+            int msgType = buf.getInt(), msgLen = buf.getInt();
+            switch (msgType) {
+                case Transport.InitBackupRequestMessage.TYPE: {
+                    serverEvents.add(new ServerEvent(conn, Transport.parse(buf)));
+                    break;
                 }
-                int msgType = buf.getInt(), msgLen = buf.getInt();
-                switch (msgType) {
-                    case Transport.InitBackupRequestMessage.TYPE: {
-                        var msg = (Transport.InitBackupRequestMessage) Transport.parse(buf);
-                        log.fine(msg.toString());
-                        assert backup == null;
-                        // should sync on appMutex?
+                case Transport.PullMessage.TYPE: {
+                    log.fine(Transport.parse(buf).toString());
+                    synchronized (appMutex) {
                         Transport.send(
-                            channel, Transport.InitBackupReplyMessage.TYPE,
-                            new Transport.InitBackupReplyMessage(app)
+                            conn, Transport.SnapshotMessage.TYPE,
+                            new Transport.SnapshotMessage(app != null ? app : new App(0, 0))
                         );
-                        backup = channel;
-
-                        if (msg.viewId() > view.id()) {
-                            assert view.id() == 1;
-                            assert msg.viewId() == 2;
-                            tracker.query();
-                            return;
-                        }
-                        break;
                     }
-                    case Transport.HelloMessage.TYPE: {
-                        var msg = (Transport.HelloMessage) Transport.parse(buf);
-                        log.fine(msg.toString());
-                        if (!workerTable.containsKey(msg.name())) {
-                            workerTable.put(msg.name(), new WorkerThread(msg.name(), channel, this));
-                            workerTable.get(msg.name()).start();
-                        } else {
-                            workerTable.get(msg.name()).channel = channel;
+                    break;
+                }
+                // relayed by previous backup of chain
+                case Transport.SyncMessage.TYPE: {
+                    var msg = (Transport.SyncMessage) Transport.parse(buf);
+                    var view = Game.this.view;
+                    if (view == null || !view.primary().equals(name)) {
+                        applySync(msg);
+                    }
+                    break;
+                }
+                case Transport.InitBackupReplyMessage.TYPE: {
+                    var msg = (Transport.InitBackupReplyMessage) Transport.parse(buf);
+                    var view = Game.this.view;
+                    if (view == null || !view.primary().equals(name)) {
+                        applyChunk(msg);
+                    }
+                    break;
+                }
+                case Transport.ReadMessage.TYPE: {
+                    var msg = (Transport.ReadMessage) Transport.parse(buf);
+                    // view is switched after app is ready, and lease only follows InitBackup
+                    var view = Game.this.view;
+                    var ok = view != null && view.primary().equals(name) || 
+                        System.currentTimeMillis() < leaseExpiry;
+                    var result = new byte[0];
+                    var seq = 0L;
+                    if (ok) {
+                        synchronized (appMutex) {
+                            result = app.peek(msg.name());
+                            seq = app.seq();
                         }
+                    }
+                    Transport.send(
+                        conn, Transport.ReadReplyMessage.TYPE,
+                        new Transport.ReadReplyMessage(msg.id(), ok, seq, result)
+                    );
+                    break;
+                }
+                case Transport.HelloMessage.TYPE: {
+                    var msg = (Transport.HelloMessage) Transport.parse(buf);
+                    log.fine(msg.toString());
+                    var player = registry.intern(msg.name());
+                    Transport.send(
+                        conn, Transport.HelloOkMessage.TYPE,
+                        new Transport.HelloOkMessage(view.id(), player)
+                    );
+                    var mailbox = mailboxTable.get(player);
+                    if (mailbox == null) {
+                        mailbox = new PlayerMailbox(msg.name(), conn, Game.this);
+                        mailboxTable.put(player, mailbox);
+                        mailbox.open();
+                    } else {
+                        mailbox.conn = conn;
+                    }
+                    break;
+                }
+                case Transport.RequestMessage.TYPE: {
+                    var msg = (Transport.RequestMessage) Transport.parse(buf);
+                    var mailbox = mailboxTable.get(msg.player());
+                    if (mailbox == null) {
+                        // player removed as failed, it reconnects to next primary if alive
+                        log.info("request of unknown player: " + registry.nameOf(msg.player()));
                         break;
                     }
-                    case Transport.SyncOkMessage.TYPE: {
-                        var msg = (Transport.SyncOkMessage) Transport.parse(buf);
-                        log.fine(msg.toString());
-                        assert inSync != null;
-                        assert !syncDone;
-                        syncDone = true;
-                        synchronized (syncBarrier) {
-                            syncBarrier.notify();
+                    mailbox.submit(() -> mailbox.handle(msg));
+                    break;
+                }
+                case Transport.SyncOkMessage.TYPE: {
+                    var msg = (Transport.SyncOkMessage) Transport.parse(buf);
+                    log.fine(msg.toString());
+                    synchronized (syncBarrier) {
+                        Replica replica = null;
+                        for (var candidate : replicaTable.values()) {
+                            if (candidate.conn == conn) {
+                                replica = candidate;
+                            }
                         }
-                        break;
+                        if (replica == null) {
+                            break;  // late ack from a dropped backup
+                        }
+                        if (msg.gap()) {
+                            if (!replica.resyncing) {
+                                resync(replica);
+                            }
+                            break;
+                        }
+                        if (replica.inSync.isEmpty() || msg.seq() < replica.inSync.peekFirst()) {
+                            break;  // acks of batches sent before the stream are stale
+                        }
+                        while (!replica.inSync.isEmpty() && replica.inSync.peekFirst() <= msg.seq()) {
+                            replica.inSync.removeFirst();
+                        }
+                        replica.resyncing = false;
+                        replica.syncedSeq = msg.seq();
+                        flushSync();
                     }
-                    case Transport.HeartbeatMessage.TYPE: {
-                        var msg = (Transport.HeartbeatMessage) Transport.parse(buf);
-                        // log.fine(msg.toString());
-                        heartbeatSet.add(msg.name());
-                        Transport.send(
-                            channel, Transport.HeartbeatOkMessage.TYPE,
-                            new Transport.HeartbeatOkMessage(view.id())
-                        );
-                        if (pendingSwitchBackup) {
-                            var nextBackup = msg.name();
-                            log.fine("pending end: next backup = " + nextBackup);
-                            tracker.playerFail(view.id(), view.backup(), nextBackup);
-                            return;
+                    break;
+                }
+                case Transport.ShardMutationMessage.TYPE: {
+                    router.receive(conn, (Transport.ShardMutationMessage) Transport.parse(buf));
+                    break;
+                }
+                case Transport.ShardAckMessage.TYPE: {
+                    router.ack((Transport.ShardAckMessage) Transport.parse(buf));
+                    break;
+                }
+                case Transport.HeartbeatMessage.TYPE: {
+                    var msg = (Transport.HeartbeatMessage) Transport.parse(buf);
+                    // log.fine(msg.toString());
+                    detector.heartbeat(msg.player());
+                    var lease = 0L;
+                    synchronized (syncBarrier) {
+                        var replica = replicaTable.get(registry.nameOf(msg.player()));
+                        if (!PARTIAL_SYNC && replica != null && replica.conn == conn) {
+                            replica.leaseGranted = System.currentTimeMillis() + LEASE;
+                            lease = LEASE;
                         }
-                        break;
                     }
-                    default:
-                        throw new RuntimeException();
+                    Transport.send(
+                        conn, Transport.HeartbeatOkMessage.TYPE,
+                        new Transport.HeartbeatOkMessage(view.id(), lease)
+                    );
+                    if (pendingSwitchBackup) {
+                        serverEvents.add(new ServerEvent(conn, msg));
+                    }
+                    break;
                 }
+                default:
+                    throw new RuntimeException();
             }
-            serverSel.selectedKeys().clear();
         }
     }
 
-    private static class WorkerThread extends Thread {
+    // carrier threads shared by all mailboxes
+    private final ExecutorService workerPool = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors()
+    );
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private interface ForwardTask {
+        void run(byte[] result) throws Exception;
+    }
+
+    // per-player mailbox that runs its tasks in order on workerPool, at most one at a time, 
+    // instead of parking a platform thread per player
+    private static class PlayerMailbox implements Runnable {
+        private static final int BATCH = 16;  // tasks before yielding carrier to others
         private final String name;
-        private SocketChannel channel;
-        private final LinkedBlockingQueue<Object> taskQueue;
+        private volatile Transport.Connection conn;  // replaced on reconnect, null for primary itself
+        private final ConcurrentLinkedDeque<Task> taskQueue;
+        private final AtomicBoolean scheduled;
+        private volatile boolean waiting;  // a task waits for sync, hold later tasks
+        private boolean removed;
         private final Game game;
 
-        public WorkerThread(String name, SocketChannel channel, Game game) {
+        public PlayerMailbox(String name, Transport.Connection conn, Game game) {
             this.name = name;
-            this.channel = channel;
+            this.conn = conn;
             this.game = game;
-            taskQueue = new LinkedBlockingQueue<>();
+            taskQueue = new ConcurrentLinkedDeque<>();
+            scheduled = new AtomicBoolean(false);
+            waiting = false;
+            removed = false;
         }
 
         private static final Logger log = Logger.getGlobal();
+        // add player before any task submitted later
+        public void open() {
+            submit(this::join);
+        }
+
+        // remove player after tasks already queued
+        public void remove() {
+            submit(this::leave);
+        }
+
+        public void submit(Task task) {
+            taskQueue.addLast(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                game.workerPool.execute(this);
+            }
+        }
+
         public void run() {
-            interrupted();
-            log.info("worker start: " + name);
             try {
-                synchronized (game.appMutex) {
-                    if (!game.app.playerSet().contains(name)) {
-                        game.app.createPlayer(name);
-                        log.entering(Game.class.getName(), "syncApp", "name = " + name);
-                        game.syncApp();
-                    }
-                }
-                log.info("player ready: " + name);
-                while (true) {
-                    Object task;
-                    try {
-                        task = taskQueue.take();
-                    } catch (InterruptedException e) {
-                        interrupted();
+                for (var i = 0; i < BATCH && !waiting; i += 1) {
+                    var task = taskQueue.pollFirst();
+                    if (task == null) {
                         break;
                     }
-                    synchronized (game.appMutex) {
-                        // TODO app logic
-                        // TODO sync app with backup
-                    }
-                    // TODO reply client
-                    assert channel != null || game.name.equals(name);
-                }
-                synchronized (game.appMutex) {
-                    game.app.removePlayer(name);
-                    log.entering(Game.class.getName(), "syncApp", "removed name = " + name);
-                    game.syncApp();
+                    task.run();
                 }
             } catch (Throwable e) {
-                log.throwing(WorkerThread.class.getName(), getName(), e);
+                log.throwing(PlayerMailbox.class.getName(), name, e);
                 System.exit(1);
             }
+            scheduled.set(false);
+            if (!waiting && !taskQueue.isEmpty()) {
+                schedule();
+            }
         }
-    }
 
-    private void syncApp() throws Exception {
-        if (backup == null) {
-            log.info("backup not present so skip sync");
-            return;
+        // suspend this mailbox until seq is synced, then run `then` before any later task
+        private void await(long seq, Task then) throws Exception {
+            waiting = true;
+            game.syncApp(seq, resume(then));
         }
-        // assert sync-ed with appMutex, so no concurrent within this method
-        assert inSync == null;
-        assert syncDone;
-        syncDone = false;
-        log.entering(Game.class.getName(), "inSync", "thread = " + Thread.currentThread());
-        inSync = Thread.currentThread();
-        try {
-            synchronized (syncBarrier) {
-                Transport.send(
-                    backup, Transport.SyncMessage.TYPE,
-                    new Transport.SyncMessage(app)    
-                );
-                // TODO backup crash during this
-                // log.entering("syncBarrier", "wait");
-                while (!syncDone) {
-                    syncBarrier.wait();
-                }
-                // log.exiting("syncBarrier", "wait");      
-            }            
-        } finally {
-            inSync = null;
-            log.exiting(Game.class.getName(), "inSync", "thread = " + Thread.currentThread());
+
+        // suspend this mailbox until the group owning its shard has synced the mutation, then 
+        // run `then` with that group's result of it
+        private void awaitForward(App.Mutation mutation, ForwardTask then) {
+            waiting = true;
+            game.router.forward(mutation, result -> resume(() -> then.run(result)).run());
+        }
+
+        private Runnable resume(Task then) {
+            return () -> {
+                taskQueue.addFirst(then);
+                waiting = false;
+                schedule();
+            };
+        }
+
+        private void join() throws Exception {
+            log.info("mailbox open: " + name);
+            var seq = 0L;
+            boolean owned;
+            synchronized (game.appMutex) {
+                if (!game.app.memberSet().contains(name)) {
+                    game.app.addMember(name);
+                    seq = game.app.seq();
+                }
+                owned = game.router.owns(name);
+                if (owned && !game.app.playerSet().contains(name)) {
+                    game.app.createPlayer(name, game.group);
+                    seq = game.app.seq();
+                }
+            }
+            Task ready = () -> log.info("player ready: " + name);
+            log.entering(Game.class.getName(), "syncApp", "name = " + name);
+            if (owned) {
+                await(seq, ready);
+            } else {
+                await(seq, () -> awaitForward(
+                    new App.Mutation(App.Mutation.CREATE_PLAYER, name, game.group, 0), 
+                    result -> ready.run()
+                ));
+            }
+        }
+
+        // requests of a player run one by one in arrival order, and each reply waits until 
+        // the state it reflects is synced; later requests go on meanwhile, as waiters are 
+        // released in seq order, except behind a forwarded request, which is answered with 
+        // the owning group's result; the op is the direction of a move
+        private void handle(Transport.RequestMessage msg) throws Exception {
+            if (removed) {
+                return;
+            }
+            long seq;
+            byte[] result;
+            boolean owned, retried;
+            synchronized (game.appMutex) {
+                owned = game.router.owns(name);
+                seq = game.app.appliedSeq(name, msg.session(), msg.id());
+                retried = seq != -1;
+                if (retried) {
+                    result = game.app.appliedResult(name, msg.session(), msg.id());
+                } else {
+                    if (owned) {
+                        result = game.app.move(name, msg.op(), msg.session(), msg.id());
+                    } else {
+                        // remembered here before forwarding, so a retry is told apart
+                        result = game.app.request(name, msg.session(), msg.id());
+                    }
+                    seq = game.app.seq();
+                }
+            }
+            var reply = new Transport.ReplyMessage(msg.id(), seq, result);
+            if (retried) {
+                log.fine("retried request: name = " + name + ", id = " + msg.id() + ", seq = " + seq);
+            }
+            // a refresh is forwarded like a move, as only the owning group knows the player, 
+            // and a retry asks that group again, which applies it only if it never got it, 
+            // and answers with its result either way
+            var forward = !owned && (!retried || App.statusOf(result) == App.FORWARDED);
+            if (!forward) {
+                game.syncApp(seq, () -> reply(reply));
+            } else {
+                var synced = seq;
+                await(seq, () -> awaitForward(
+                    new App.Mutation(
+                        App.Mutation.MOVE, name, null, msg.op(), msg.session(), msg.id()
+                    ), 
+                    forwarded -> reply(new Transport.ReplyMessage(msg.id(), synced, forwarded))
+                ));
+            }
+        }
+
+        private void reply(Transport.ReplyMessage msg) {
+            try {
+                if (conn == null) {
+                    assert game.name.equals(name);
+                    game.complete(msg);
+                } else {
+                    Transport.send(conn, Transport.ReplyMessage.TYPE, msg);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void leave() throws Exception {
+            removed = true;
+            long seq;
+            boolean owned;
+            synchronized (game.appMutex) {
+                game.app.removeMember(name);
+                owned = game.router.owns(name);
+                if (owned) {
+                    game.app.removePlayer(name);
+                }
+                seq = game.app.seq();
+            }
+            log.entering(Game.class.getName(), "syncApp", "removed name = " + name);
+            if (owned) {
+                await(seq, () -> {});
+            } else {
+                await(seq, () -> awaitForward(
+                    new App.Mutation(App.Mutation.REMOVE_PLAYER, name, null, 0), result -> {}
+                ));
+            }
+        }
+    }
+
+    private static final long PENDING_TIMEOUT = 5 * FailureDetector.HEARTBEAT_INTERVAL;
+    private static record ShardInbound(Transport.Connection conn, Transport.ShardMutationMessage msg) {}
+    private static record ShardReply(Transport.Connection conn, Transport.ShardAckMessage msg) {}
+
+    // keeps each player in the group owning its shard by tracker's shard map: mutations of 
+    // players in other groups' shards are forwarded to those groups' primaries, and on map 
+    // change each lost shard is handed over to its new owner on its own, while the gaining 
+    // group holds back only traffic of that shard until the hand-over arrives
+    private class ShardRouter extends Thread {
+        private static class Outgoing {
+            long id;  // assigned on send
+            final int shard;
+            final boolean move;
+            final List<App.Mutation> mutations;
+            final Consumer<byte[]> then;  // on ack, with receiver's result of a request
+            Transport.Connection conn;  // sent on, null to (re)send
+
+            Outgoing(
+                int shard, boolean move, List<App.Mutation> mutations, Consumer<byte[]> then
+            ) {
+                this.shard = shard;
+                this.move = move;
+                this.mutations = mutations;
+                this.then = then;
+            }
+        }
+
+        // guarded by appMutex, so ownership changes atomically with app
+        // null until first map, and ownership is the one replicated in app meanwhile
+        private Tracker.ShardMap map;
+        private final HashMap<Integer, Long> pendingTable = new HashMap<>();  // shard -> deadline
+        private final HashMap<Integer, ArrayList<ShardInbound>> heldTable = new HashMap<>();
+
+        // guarded by this
+        private long nextId = 0;
+        private final LinkedHashMap<Long, Outgoing> outgoingTable = new LinkedHashMap<>();
+        private final HashMap<InetSocketAddress, Transport.Connection> linkTable = new HashMap<>();
+        private boolean kicked = false;
+
+        public ShardRouter() {
+            super("shard-router");
+            setDaemon(true);
+        }
+
+        // with appMutex held
+        public boolean owns(String name) {
+            return ownsShard(Tracker.shardOf(name));
+        }
+
+        private boolean ownsShard(int shard) {
+            return map == null ? app.ownsShard(shard) : group.equals(map.owner(shard));
+        }
+
+        public void forward(App.Mutation mutation, Consumer<byte[]> then) {
+            var shard = Tracker.shardOf(mutation.name());
+            send(new Outgoing(shard, false, List.of(mutation), then));
+        }
+
+        private synchronized void send(Outgoing outgoing) {
+            outgoing.id = nextId;
+            nextId += 1;
+            outgoingTable.put(outgoing.id, outgoing);
+            kicked = true;
+            notify();
+        }
+
+        public void ack(Transport.ShardAckMessage msg) {
+            Outgoing outgoing;
+            synchronized (this) {
+                outgoing = outgoingTable.get(msg.id());
+                if (outgoing == null) {
+                    return;
+                }
+                if (!msg.ok()) {
+                    outgoing.conn = null;  // resend after map catches up
+                    return;
+                }
+                outgoingTable.remove(msg.id());
+            }
+            outgoing.then.accept(msg.result());
+        }
+
+        public void receive(Transport.Connection conn, Transport.ShardMutationMessage msg) throws Exception {
+            var appliedList = new ArrayList<ShardInbound>();
+            List<ShardReply> ackList;
+            long seq;
+            synchronized (appMutex) {
+                if (!ownsShard(msg.shard())) {
+                    Transport.send(
+                        conn, Transport.ShardAckMessage.TYPE, 
+                        new Transport.ShardAckMessage(msg.id(), false, new byte[0])
+                    );
+                    return;
+                }
+                if (!msg.move() && pendingTable.containsKey(msg.shard())) {
+                    heldTable.computeIfAbsent(msg.shard(), s -> new ArrayList<>())
+                        .add(new ShardInbound(conn, msg));
+                    return;
+                }
+                appliedList.add(new ShardInbound(conn, msg));
+                if (msg.move()) {
+                    log.info(
+                        "shard received: shard = " + msg.shard() + ", players = " + msg.mutations().size()
+                    );
+                    pendingTable.remove(msg.shard());
+                    appliedList.addAll(heldTable.getOrDefault(msg.shard(), new ArrayList<>()));
+                    heldTable.remove(msg.shard());
+                }
+                ackList = applyAll(appliedList);
+                seq = app.seq();
+            }
+            syncApp(seq, () -> ackAll(ackList));
+        }
+
+        // with appMutex held, and each ack carries the result of a forwarded request as this 
+        // group made it, or as cached for a retry, right after applying it
+        private List<ShardReply> applyAll(List<ShardInbound> inboundList) {
+            var ackList = new ArrayList<ShardReply>();
+            for (var inbound : inboundList) {
+                var result = new byte[0];
+                for (var mutation : inbound.msg().mutations()) {
+                    app.record(mutation);
+                    if (mutation.session() != 0) {
+                        var name = mutation.name();
+                        result = app.appliedSeq(name, mutation.session(), mutation.id()) != -1 ? 
+                            app.appliedResult(name, mutation.session(), mutation.id()) : 
+                            app.result(name, App.EXPIRED);
+                    }
+                }
+                ackList.add(new ShardReply(
+                    inbound.conn(), 
+                    new Transport.ShardAckMessage(inbound.msg().id(), true, result)
+                ));
+            }
+            return ackList;
+        }
+
+        private void ackAll(List<ShardReply> ackList) {
+            try {
+                for (var ack : ackList) {
+                    Transport.send(ack.conn(), Transport.ShardAckMessage.TYPE, ack.msg());
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (this) {
+                        if (!kicked) {
+                            wait(FailureDetector.HEARTBEAT_INTERVAL);
+                        }
+                        kicked = false;
+                    }
+                    updateMap();
+                    releaseExpired();
+                    sendOutgoing();
+                }
+            } catch (Throwable e) {
+                log.throwing(ShardRouter.class.getName(), "run", e);
+                System.exit(1);
+            }
+        }
+
+        private void updateMap() throws Exception {
+            var nextMap = tracker.shardMap();
+            if (nextMap == null || !nextMap.groupList().contains(group)) {
+                return;
+            }
+            var moveList = new ArrayList<Outgoing>();
+            long seq;
+            synchronized (appMutex) {
+                if (map != null && nextMap.version() <= map.version()) {
+                    return;
+                }
+                // a promoted primary goes by ownership its predecessor replicated, so it hands 
+                // over only shards that really move
+                var ownedArray = new boolean[Tracker.SHARDS];
+                for (var shard = 0; shard < Tracker.SHARDS; shard += 1) {
+                    ownedArray[shard] = ownsShard(shard);
+                }
+                map = nextMap;
+                var shardList = new ArrayList<Integer>();
+                var mask = 0L;
+                for (var shard = 0; shard < Tracker.SHARDS; shard += 1) {
+                    var owned = ownedArray[shard];
+                    if (owned && !ownsShard(shard)) {
+                        var creates = new ArrayList<App.Mutation>();
+                        for (var player : app.playerSet()) {
+                            if (Tracker.shardOf(player) == shard) {
+                                creates.add(new App.Mutation(
+                                    App.Mutation.CREATE_PLAYER, player, app.homeOf(player), 
+                                    app.scoreOf(player)
+                                ));
+                            }
+                        }
+                        log.info(
+                            "shard move: shard = " + shard + ", to = " + map.owner(shard) + 
+                            ", players = " + creates.size()
+                        );
+                        moveList.add(
+                            new Outgoing(shard, true, creates, result -> dropMoved(creates))
+                        );
+                    } else if (!owned && ownsShard(shard)) {
+                        pendingTable.put(shard, System.currentTimeMillis() + PENDING_TIMEOUT);
+                    }
+                    if (ownsShard(shard)) {
+                        shardList.add(shard);
+                        mask |= 1L << shard;
+                    }
+                }
+                log.info("shard map: version = " + map.version() + ", owned = " + shardList);
+                app.record(
+                    new App.Mutation(App.Mutation.OWN_SHARDS, null, null, map.version(), 0, mask)
+                );
+                seq = app.seq();
+            }
+            syncApp(seq, () -> {});
+            for (var move : moveList) {
+                send(move);
+            }
+        }
+
+        // after new owner has synced a moved shard
+        private void dropMoved(List<App.Mutation> creates) {
+            try {
+                long seq;
+                synchronized (appMutex) {
+                    for (var create : creates) {
+                        if (!owns(create.name()) && app.homeOf(create.name()) != null) {
+                            app.removePlayer(create.name());
+                        }
+                    }
+                    seq = app.seq();
+                }
+                syncApp(seq, () -> {});
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        // previous owner never handed over, e.g. it crashed, so stop holding
+        private void releaseExpired() throws Exception {
+            var appliedList = new ArrayList<ShardInbound>();
+            List<ShardReply> ackList;
+            long seq;
+            synchronized (appMutex) {
+                var iter = pendingTable.entrySet().iterator();
+                while (iter.hasNext()) {
+                    var entry = iter.next();
+                    if (entry.getValue() > System.currentTimeMillis()) {
+                        continue;
+                    }
+                    log.info("shard hand-over timeout: shard = " + entry.getKey());
+                    iter.remove();
+                    var heldList = heldTable.remove(entry.getKey());
+                    if (heldList != null) {
+                        appliedList.addAll(heldList);
+                    }
+                }
+                if (appliedList.isEmpty()) {
+                    return;
+                }
+                ackList = applyAll(appliedList);
+                seq = app.seq();
+            }
+            syncApp(seq, () -> ackAll(ackList));
+        }
+
+        // in id order, so mutations to the same owner keep their order
+        private void sendOutgoing() throws Exception {
+            var unsentList = new ArrayList<Outgoing>();
+            synchronized (this) {
+                for (var outgoing : outgoingTable.values()) {
+                    if (outgoing.conn == null || outgoing.conn.isClosed()) {
+                        unsentList.add(outgoing);
+                    }
+                }
+            }
+            var unreachable = false;
+            for (var outgoing : unsentList) {
+                InetSocketAddress target;
+                synchronized (appMutex) {
+                    target = map == null ? null : map.primaryOf(map.owner(outgoing.shard));
+                }
+                var conn = target == null ? null : link(target);
+                if (conn == null) {
+                    unreachable = true;
+                    continue;
+                }
+                synchronized (this) {
+                    if (outgoingTable.get(outgoing.id) != outgoing) {
+                        continue;
+                    }
+                    outgoing.conn = conn;
+                }
+                Transport.send(
+                    conn, Transport.ShardMutationMessage.TYPE, 
+                    new Transport.ShardMutationMessage(
+                        outgoing.id, outgoing.shard, outgoing.move, outgoing.mutations
+                    )
+                );
+            }
+            // tracker pushes a primary failover only to its own group, so ask for the newer map
+            if (unreachable) {
+                tracker.query();
+            }
+        }
+
+        // connection to another primary, with its acks read by a reactor
+        private Transport.Connection link(InetSocketAddress target) throws Exception {
+            synchronized (this) {
+                var conn = linkTable.get(target);
+                if (conn != null && !conn.isClosed()) {
+                    return conn;
+                }
+            }
+            try {
+                var conn = Game.this.link(target);
+                synchronized (this) {
+                    linkTable.put(target, conn);
+                }
+                return conn;
+            } catch (IOException e) {
+                // Logger.getGlobal().throwing(ShardRouter.class.getName(), "link", e);
+                log.info("ignore exception and expect shard map update soon");
+                return null;
+            }
+        }
+    }
+
+    // waiters of the same seq run in arrival order, so do replies of a player
+    private static record SyncWaiter(long seq, long order, Runnable then) {}
+    private final PriorityQueue<SyncWaiter> syncWaiters = new PriorityQueue<>(
+        Comparator.comparingLong(SyncWaiter::seq).thenComparingLong(SyncWaiter::order)
+    );
+    private long nextWaiterOrder = 0;
+
+    // group commit: call `then` once mutations up to seq are acked by backup, or right away 
+    // if there is no backup; all pending mutations are sent as one batch whenever the 
+    // window has room, so concurrent callers share round trips and batches are pipelined
+    private void syncApp(long seq, Runnable then) throws Exception {
+        synchronized (syncBarrier) {
+            // fsync moves commitSeq outside syncBarrier, so earlier waiters may still be
+            // queued and this one goes after them
+            if (syncWaiters.isEmpty() && commitSeq() >= seq) {
+                if (replicaTable.isEmpty()) {
+                    log.info("backup not present so skip sync");
+                    drainAlone();
+                }
+                then.run();
+                return;
+            }
+            syncWaiters.add(new SyncWaiter(seq, nextWaiterOrder, then));
+            nextWaiterOrder += 1;
+            flushSync();
+        }
+    }
+
+    // with syncBarrier held, highest seq acked by backups and, if acks wait for fsync, on 
+    // local disk as well
+    private long commitSeq() {
+        var seq = replicaTable.isEmpty() ? Long.MAX_VALUE : syncedSeq();
+        if (System.currentTimeMillis() < fenceExpiry) {
+            seq = Math.min(seq, fenceSeq);
+        }
+        return store != null && Store.FSYNC_ACK ? Math.min(seq, store.durableSeq()) : seq;
+    }
+
+    // with syncBarrier held, acks needed by a commit
+    private int quorum() {
+        return PARTIAL_SYNC ? Math.min(SYNC_QUORUM, replicaTable.size()) : replicaTable.size();
+    }
+
+    // with syncBarrier held, highest seq acked by quorum
+    private long syncedSeq() {
+        var seqArray = new long[replicaTable.size()];
+        var i = 0;
+        for (var replica : replicaTable.values()) {
+            seqArray[i] = replica.syncedSeq;
+            i += 1;
+        }
+        Arrays.sort(seqArray);
+        return seqArray[seqArray.length - quorum()];
+    }
+
+    // with syncBarrier held, first backup in view order that has taken InitBackup
+    private Replica head() {
+        for (var backup : view.backupList()) {
+            if (replicaTable.containsKey(backup)) {
+                return replicaTable.get(backup);
+            }
+        }
+        return replicaTable.values().iterator().next();  // joined ahead of view
+    }
+
+    // with syncBarrier held; like InitBackup, only the copy holds appMutex, and it is streamed 
+    // on its own thread while batches for the backup are held in its backlog; the whole chain 
+    // takes the stream in order with the batches
+    private void resync(Replica replica) throws Exception {
+        var target = CHAIN ? head() : replica;
+        App copy;
+        synchronized (appMutex) {
+            copy = app.copy();  // later batches overlap it, and backups skip what it covers
+        }
+        log.info("backup falls behind: " + replica.name + ", stream state: seq = " + copy.seq());
+        target.backlog.clear();
+        target.streaming = true;
+        for (var resynced : CHAIN ? replicaTable.values() : List.of(replica)) {
+            resynced.resyncing = true;
+            resynced.inSync.clear();
+            resynced.inSync.add(copy.seq());
+        }
+        var thread = new Thread(() -> {
+            try {
+                if (!streamCopy(target.conn, copy)) {
+                    return;  // dropped on failure detection soon
+                }
+                synchronized (syncBarrier) {
+                    target.streaming = false;
+                    if (replicaTable.get(target.name) == target) {
+                        flushSync();
+                    }
+                }
+            } catch (Throwable e) {
+                log.throwing(Game.class.getName(), "resync", e);
+                System.exit(1);
+            }
+        }, "resync-" + target.name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // with syncBarrier held, sends what is held for the replica if its window allows, or 
+    // gives up on a backlog that has grown larger than worth sending
+    private void sendBacklog(Replica replica) throws Exception {
+        if (replica.backlog.isEmpty() || replica.streaming) {
+            return;
+        }
+        if (replica.inSync.size() >= SYNC_WINDOW) {
+            if (replica.backlog.size() > SYNC_BACKLOG && !replica.resyncing) {
+                resync(replica);
+            }
+            return;
+        }
+        Transport.send(
+            replica.conn, Transport.SyncMessage.TYPE, 
+            new Transport.SyncMessage(replica.backlogSeq, replica.backlog)
+        );
+        for (var synced : CHAIN ? replicaTable.values() : List.of(replica)) {
+            synced.inSync.add(replica.backlogSeq);
+        }
+        replica.backlog.clear();
+    }
+
+    // with syncBarrier held and no backup, pending mutations only go to joiners' tails, so 
+    // they do not pile up until next backup
+    private void drainAlone() {
+        synchronized (appMutex) {
+            var mutations = app.drainPending();  // next backup gets them from snapshot
+            sentSeq = app.seq();
+            for (var joiner : joinTable.values()) {
+                joiner.tail.addAll(mutations);
+            }
+        }
+    }
+
+    // with syncBarrier held
+    private void flushSync() throws Exception {
+        if (replicaTable.isEmpty()) {
+            drainAlone();
+            var commitSeq = commitSeq();
+            while (!syncWaiters.isEmpty() && syncWaiters.peek().seq() <= commitSeq) {
+                syncWaiters.poll().then().run();
+            }
+            return;
+        }
+        var commitSeq = commitSeq();
+        while (!syncWaiters.isEmpty() && syncWaiters.peek().seq() <= commitSeq) {
+            syncWaiters.poll().then().run();
+        }
+        var readyList = new ArrayList<Replica>();
+        for (var replica : replicaTable.values()) {
+            sendBacklog(replica);  // its window may have opened since
+            if (replica.inSync.size() < SYNC_WINDOW && !replica.streaming) {
+                readyList.add(replica);
+            }
+        }
+        if (syncWaiters.isEmpty() || readyList.size() < quorum()) {
+            return;
+        }
+        List<App.Mutation> mutations;
+        synchronized (appMutex) {
+            if (sentSeq >= app.seq()) {
+                return;
+            }
+            mutations = app.drainPending();
+            sentSeq = app.seq();
+        }
+        for (var joiner : joinTable.values()) {
+            joiner.tail.addAll(mutations);
+        }
+        log.fine("sync batch: seq = " + sentSeq + ", size = " + mutations.size());
+        // a backup with full window holds this batch, and gets it with the rest of its 
+        // backlog once its window opens
+        for (var replica : CHAIN ? List.of(head()) : replicaTable.values()) {
+            replica.backlog.addAll(mutations);
+            replica.backlogSeq = sentSeq;
+            sendBacklog(replica);
+        }
+    }
+
+    // backup applies batches from primary on runClient thread, or relayed by previous backup 
+    // of chain on a reactor, and acks each to primary
+    private void applySync(Transport.SyncMessage msg) throws Exception {
+        var first = msg.seq() - msg.mutations().size() + 1;
+        long seq;
+        boolean gap;
+        synchronized (appMutex) {  // against lease reads, and keeps relay in order
+            if (app == null) {
+                return;  // relayed ahead of InitBackup, which covers it or finds the gap later
+            }
+            gap = first > app.seq() + 1;
+            if (!gap) {
+                // skip mutations already covered by snapshot
+                for (var i = (int) (app.seq() + 1 - first); i < msg.mutations().size(); i += 1) {
+                    app.apply(msg.mutations().get(i));
+                }
+                log.fine("sync done: seq = " + app.seq() + ", player set = " + app.playerSet());
+            } else {
+                log.info("sync gap: seq = " + app.seq() + ", first = " + first);
+            }
+            seq = app.seq();
+            relay(Transport.SyncMessage.TYPE, msg);
+        }
+        if (!gap && store != null && Store.FSYNC_ACK) {
+            store.afterDurable(seq, () -> {
+                try {
+                    ackSync(seq, false);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        } else {
+            ackSync(seq, gap);
+        }
+    }
+
+    // backup that has fallen behind takes a stream of state from primary on runClient thread, 
+    // or relayed by previous backup of chain on a reactor, and replaces app at the last chunk
+    private ByteBuffer resyncState;  // guarded by appMutex, chunks taken so far
+
+    private void applyChunk(Transport.InitBackupReplyMessage msg) throws Exception {
+        App resynced;
+        synchronized (appMutex) {
+            if (app == null) {
+                return;  // relayed ahead of InitBackup, which covers it
+            }
+            relay(Transport.InitBackupReplyMessage.TYPE, msg);
+            if (msg.from() == 0) {
+                resyncState = ByteBuffer.allocate(msg.size());
+            }
+            if (resyncState == null) {
+                return;  // rest of a stream begun before InitBackup
+            }
+            resyncState.position(msg.from());
+            resyncState.put(msg.data());
+            if (resyncState.hasRemaining()) {
+                return;
+            }
+            resynced = App.read(resyncState.flip());
+            resyncState = null;
+            app = resynced;
+            resetStore();
+        }
+        checkpointReset();
+        log.fine("resync done: seq = " + resynced.seq() + ", player set = " + resynced.playerSet());
+        ackSync(resynced.seq(), false);
+    }
+
+    // with appMutex held, after app is replaced as a whole; checkpointReset follows once
+    // appMutex is released
+    private void resetStore() throws Exception {
+        if (store != null) {
+            store.reset(app);
+        }
+    }
+
+    // off appMutex, app replaced by last resetStore is on disk once it returns
+    private void checkpointReset() throws Exception {
+        if (store != null) {
+            store.checkpointReset();
+        }
+    }
+
+    // on WAL thread, commits may have waited for the fsync just done
+    private void onDurable() {
+        try {
+            synchronized (syncBarrier) {
+                if (!syncWaiters.isEmpty()) {
+                    flushSync();
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // copies app once WAL has grown enough, and writes it out off appMutex while WAL goes 
+    // on in a fresh segment
+    private void runCheckpoint() {
+        try {
+            while (true) {
+                store.awaitCheckpoint();
+                App copy;
+                long rotated;
+                synchronized (appMutex) {
+                    copy = app.copy();
+                    rotated = store.rotate(copy.seq());
+                }
+                store.checkpoint(copy, rotated);
+            }
+        } catch (Throwable e) {
+            log.throwing(Game.class.getName(), "checkpoint", e);
+            System.exit(1);
+        }
+    }
+
+    private void ackSync(long seq, boolean gap) throws Exception {
+        var client = this.client;
+        if (client != null) {
+            Transport.send(
+                client, Transport.SyncOkMessage.TYPE,
+                new Transport.SyncOkMessage(seq, gap)
+            );
+        }
+    }
+
+    // chain link to next backup in view, set up by guard thread; until it is up the next 
+    // backup misses batches and resyncs on the gap
+    private volatile Transport.Connection successor;
+    private InetSocketAddress successorAddr;  // of successor, guard thread only
+
+    // with appMutex held
+    private void relay(int msgType, Transport.Message msg) throws Exception {
+        var successor = this.successor;
+        if (successor != null && !successor.isClosed()) {
+            Transport.send(successor, msgType, msg);
+        }
+    }
+
+    private void linkSuccessor() {
+        var i = view.backupList().indexOf(name);
+        var next = CHAIN && i != -1 && i + 1 < view.backupList().size() ? 
+            view.backupAddrList().get(i + 1) : null;
+        if (
+            Objects.equals(next, successorAddr) && 
+            (next == null || successor != null && !successor.isClosed())
+        ) {
+            return;
+        }
+        if (successor != null) {
+            successor.close();
+        }
+        successorAddr = next;
+        try {
+            successor = next == null ? null : link(next);
+        } catch (IOException e) {
+            // Logger.getGlobal().throwing(Game.class.getName(), "linkSuccessor", e);
+            log.info("ignore exception and expect retry or view change soon");
+            successor = null;
+        }
+    }
+
+    // connection to another node, with whatever it sends back read by a reactor
+    private Transport.Connection link(InetSocketAddress target) throws IOException {
+        var channel = SocketChannel.open();
+        channel.socket().connect(target, (int) CONNECT_TIMEOUT);
+        channel.configureBlocking(false);
+        var conn = new Transport.Connection(channel);
+        reactors[Math.floorMod(target.hashCode(), reactors.length)].register(conn);
+        return conn;
+    }
+
+    // new primary takes the most advanced state among backups, as a quorum may have committed 
+    // batches it skipped; a backup that does not answer has failed with the old primary
+    private void pullState(Tracker.View view) throws Exception {
+        if (!PARTIAL_SYNC) {
+            return;  // every commit is on this node already
+        }
+        for (var i = 0; i < view.backupList().size(); i += 1) {
+            var target = view.backupAddrList().get(i);
+            var pulled = target == null ? null : pull(target, view.id());
+            if (pulled != null && pulled.seq() > app.seq()) {
+                log.info(
+                    "pull state: from = " + view.backupList().get(i) + ", seq = " + pulled.seq() + 
+                    ", own seq = " + app.seq()
+                );
+                synchronized (appMutex) {
+                    app = pulled;
+                    resetStore();
+                }
+                checkpointReset();
+            }
+        }
+    }
+
+    private App pull(InetSocketAddress target, int viewId) throws Exception {
+        var reply = call(target, Transport.PullMessage.TYPE, new Transport.PullMessage(viewId));
+        return reply == null ? null : ((Transport.SnapshotMessage) reply).app();
+    }
+
+    // one message over a connection of its own, and its reply, or null if none in time
+    private Object call(InetSocketAddress target, int msgType, Transport.Message msg) throws Exception {
+        try (var channel = SocketChannel.open(); var sel = Selector.open()) {
+            channel.socket().connect(target, (int) CONNECT_TIMEOUT);
+            Transport.send(channel, msgType, msg);
+            channel.configureBlocking(false);
+            channel.register(sel, SelectionKey.OP_READ);
+            var decoder = new Transport.FrameDecoder();
+            ByteBuffer buf;
+            while ((buf = decoder.next()) == null) {
+                sel.selectedKeys().clear();
+                if (sel.select(CONNECT_TIMEOUT) == 0 || !decoder.read(channel)) {
+                    return null;
+                }
+            }
+            int replyType = buf.getInt(), replyLen = buf.getInt();  // parse reads type behind
+            return Transport.parse(buf);
+        } catch (IOException e) {
+            // Logger.getGlobal().throwing(Game.class.getName(), "call", e);
+            log.info("ignore exception and expect failure detected soon");
+            return null;
+        }
+    }
+
+    // each line of stdin is a request op, sent without waiting for replies of earlier ones, 
+    // or `r <player>` to read a player
+    private void readInput() {
+        try {
+            var reader = new BufferedReader(new InputStreamReader(System.in));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("r ")) {
+                    read(line.substring(2).trim());
+                    continue;
+                }
+                int op;
+                try {
+                    op = Integer.parseInt(line.trim());
+                } catch (NumberFormatException e) {
+                    log.info("ignore bad input: " + line);
+                    continue;
+                }
+                request(op);
+            }
+        } catch (Throwable e) {
+            log.throwing(Game.class.getName(), "readInput", e);
+            System.exit(1);
+        }
+    }
+
+    // requestMutex guards following states of own requests, which stay until replied and are 
+    // resent in order to every new primary, since the old one may have lost them; primary 
+    // tells a resent one from a new one by id within session, and answers it without 
+    // applying again
+    private final Object requestMutex = new Object();
+    private final long session = ThreadLocalRandom.current().nextLong() | 1;  // never 0
+    private final TreeMap<Long, Integer> requestTable = new TreeMap<>();  // id -> op
+    private long nextRequestId = 0;
+    private boolean requestOpen = false;  // connected to primary of current view, or is it
+
+    private void request(int op) throws Exception {
+        synchronized (requestMutex) {
+            nextRequestId += 1;
+            requestTable.put(nextRequestId, op);
+            if (requestOpen) {
+                sendRequest(nextRequestId, op);
+            }
+        }
+    }
+
+    private void openRequests() throws Exception {
+        synchronized (requestMutex) {
+            if (requestOpen) {
+                return;  // same primary over the same connection
+            }
+            requestOpen = true;
+            for (var entry : requestTable.entrySet()) {
+                sendRequest(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void closeRequests() {
+        synchronized (requestMutex) {
+            requestOpen = false;
+        }
+    }
+
+    // with requestMutex held
+    private void sendRequest(long id, int op) throws Exception {
+        if (view.primary().equals(name)) {
+            var mailbox = mailboxTable.get(ownId);
+            var msg = new Transport.RequestMessage(ownId, session, id, op);
+            mailbox.submit(() -> mailbox.handle(msg));
+        } else {
+            Transport.send(
+                client, Transport.RequestMessage.TYPE, 
+                new Transport.RequestMessage(playerId, session, id, op)
+            );
+        }
+    }
+
+    private void complete(Transport.ReplyMessage msg) {
+        log.fine(msg + describe(msg.result()));
+        synchronized (requestMutex) {
+            requestTable.remove(msg.id());
+        }
+    }
+
+    private static String describe(byte[] result) {
+        var buf = ByteBuffer.wrap(result);
+        return ": status = " + buf.getInt() + ", cell = " + buf.getInt() + ", score = " + buf.getInt();
+    }
+
+    // a read is not a request and never changes state, so it goes to a backup, which serves 
+    // it while holding a lease, and falls back to primary, each over a connection of its own 
+    // so it never waits behind requests
+    private long nextReadId = 0;  // of input thread
+    private void read(String player) throws Exception {
+        var view = this.view;
+        if (view == null) {
+            log.info("ignore read before first view: player = " + player);
+            return;
+        }
+        nextReadId += 1;
+        var msg = new Transport.ReadMessage(nextReadId, player);
+        var targetList = new ArrayList<InetSocketAddress>();
+        var backupCount = view.backupAddrList().size();
+        for (var i = 0; i < backupCount; i += 1) {
+            // spread reads over backups
+            var target = view.backupAddrList().get((int) ((nextReadId + i) % backupCount));
+            if (target != null) {
+                targetList.add(target);
+            }
+        }
+        targetList.add(view.serverAddr());
+        for (var target : targetList) {
+            var reply = (Transport.ReadReplyMessage) call(target, Transport.ReadMessage.TYPE, msg);
+            if (reply != null && reply.ok()) {
+                log.fine(reply + describe(reply.result()));
+                return;
+            }
         }
+        log.info("read fail: player = " + player);
     }
 
-    boolean primaryHeartbeat, stopGuard = false;
+    private final Object guardStop = new Object();
+    private boolean stopGuard;  // guarded by guardStop
     private void runClient() throws Exception {
-        primaryHeartbeat = true;
+        var primaryId = registry.intern(view.primary());
+        detector.remove(primaryId);  // fresh history since connection to primary
+        detector.heartbeat(primaryId);
         var master = Thread.currentThread();
-        assert !stopGuard;  // previous guard already exit
-        (new Thread(() -> {
+        stopGuard = false;
+        // send time of heartbeats not answered yet, in order
+        var heartbeatSent = new ConcurrentLinkedQueue<Long>();
+        var guard = new Thread(() -> {
             try {
                 while (true) {
+                    heartbeatSent.add(System.currentTimeMillis());
                     Transport.send(
                         client, Transport.HeartbeatMessage.TYPE,
-                        new Transport.HeartbeatMessage(name)
+                        new Transport.HeartbeatMessage(playerId)
                     );
-                    Thread.sleep(500);
-                    if (stopGuard) {
-                        stopGuard = false;
-                        return;
+                    synchronized (guardStop) {
+                        if (!stopGuard) {
+                            guardStop.wait(FailureDetector.HEARTBEAT_INTERVAL);
+                        }
+                        if (stopGuard) {
+                            return;
+                        }
                     }
-                    log.fine("check: primary hearbeat = " + primaryHeartbeat);
-                    if (!primaryHeartbeat) {
-                        if (view.backup().equals(name)) {
-                            log.info("primary fail but no idea on next backup so keep query");
-                            while (true) {
-                                Thread.sleep(50);
-                                log.info("query");
-                                tracker.query();
-                                if (tracker.receiveView().id() > this.view.id()) {
-                                    tracker.query();  // silly
-                                    break;
-                                }
-                            }
+                    linkSuccessor();
+                    if (!detector.isAvailable(primaryId)) {
+                        log.info("check: primary phi = " + detector.phi(primaryId));
+                        if (view.backupList().indexOf(name) == 0) {
+                            log.info("primary fail but no idea on next backup so wait for view change");
+                            tracker.awaitView(view.id());
                         } else {
                             log.info("primary fail: next backup = " + name + " (aka self)");
                             tracker.playerFail(view.id(), view.primary(), name);
@@ -420,48 +2013,68 @@ public class Game {
                         master.interrupt();
                         return;
                     }
-                    primaryHeartbeat = false;
                 }
             } catch (Throwable e) {
                 log.throwing(Game.class.getName(), "client guard", e);
                 System.exit(1);
             }
-        })).start();
-        while (!master.interrupted()) {
+        });
+        guard.start();
+        while (true) {
             ByteBuffer buf;
             try {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();  // guard stopped it between reads
+                }
                 buf = Transport.socketReceiveRaw(client);
                 if (buf == null) {
-                    // 1200ms (new client) waiting + 200ms reaction + 100ms redundant
-                    Thread.sleep(1500);
-                    throw new RuntimeException();  // unreachable
+                    // primary is gone, wait for guard to detect it however long its phi
+                    // margin takes; guard only returns after interrupting this thread
+                    guard.join();
+                    throw new InterruptedException();
                 }
             } catch (InterruptedException | ClosedByInterruptException e) {
+                closeRequests();
                 client.close();
                 client = null;
                 master.interrupted();
+                guard.join();
                 return;
             }
             int msgType = buf.getInt(), msgLen = buf.getInt();
             switch (msgType) {
                 case Transport.SyncMessage.TYPE: {
                     var msg = (Transport.SyncMessage) Transport.parse(buf);
-                    assert view.backup().equals(name);
+                    assert view.backupList().contains(name);
                     assert app != null;
-                    app = msg.app();
-                    log.fine("sync done: player set = " + app.playerSet());
-                    Transport.send(
-                        client, Transport.SyncOkMessage.TYPE,
-                        new Transport.SyncOkMessage()
-                    );
+                    applySync(msg);
+                    break;
+                }
+                case Transport.InitBackupReplyMessage.TYPE: {
+                    var msg = (Transport.InitBackupReplyMessage) Transport.parse(buf);
+                    assert view.backupList().contains(name);
+                    applyChunk(msg);
+                    break;
+                }
+                case Transport.ReplyMessage.TYPE: {
+                    complete((Transport.ReplyMessage) Transport.parse(buf));
                     break;
                 }
                 case Transport.HeartbeatOkMessage.TYPE:
                     var msg = (Transport.HeartbeatOkMessage) Transport.parse(buf);
-                    primaryHeartbeat = true;
+                    detector.heartbeat(primaryId);
+                    var sent = heartbeatSent.poll();
+                    if (msg.lease() > 0 && sent != null) {
+                        leaseExpiry = sent + msg.lease();
+                    }
                     if (msg.viewId() > view.id()) {
+                        // stop guard before next view reuses connection
+                        synchronized (guardStop) {
+                            stopGuard = true;
+                            guardStop.notify();
+                        }
+                        guard.join();
                         tracker.query();
-                        stopGuard = true;
                         return;
                     }
                     break;
@@ -472,21 +2085,651 @@ public class Game {
     }
 }
 
-class App implements Serializable {
-    private final HashMap<String, Boolean> playerTable;
-    public App() {
-        playerTable = new HashMap<>();
+class App {
+    // `home` is the group player's node replicates in, and `arg` its score, only for 
+    // CREATE_PLAYER; `arg` is the direction for MOVE; `session` and `id` tag a MOVE or 
+    // REQUEST made for request `id` of client `name`, and are 0 otherwise
+    public static record Mutation(
+        int op, String name, String home, int arg, long session, long id
+    ) {
+        public static final int CREATE_PLAYER = 1;
+        public static final int REMOVE_PLAYER = 2;
+        public static final int ADD_MEMBER = 3;
+        public static final int REMOVE_MEMBER = 4;
+        public static final int MOVE = 5;
+        public static final int REQUEST = 6;  // request done elsewhere, e.g. forwarded move
+        public static final int OWN_SHARDS = 7;  // arg is shard map version, id mask of shards
+
+        public Mutation(int op, String name, String home, int arg) {
+            this(op, name, home, arg, 0, 0);
+        }
+
+        public void write(ByteBuffer buf) {
+            buf.put((byte) op);
+            Transport.putString(buf, name);
+            Transport.putString(buf, home);
+            buf.putInt(arg);
+            if (op == MOVE || op == REQUEST) {
+                buf.putLong(session).putLong(id);
+            } else if (op == OWN_SHARDS) {
+                buf.putLong(id);
+            }
+        }
+
+        public static Mutation read(ByteBuffer buf) {
+            int op = buf.get(), arg;
+            String name = Transport.getString(buf), home = Transport.getString(buf);
+            arg = buf.getInt();
+            if (op == MOVE || op == REQUEST) {
+                return new Mutation(op, name, home, arg, buf.getLong(), buf.getLong());
+            } else if (op == OWN_SHARDS) {
+                return new Mutation(op, name, home, arg, 0, buf.getLong());
+            }
+            return new Mutation(op, name, home, arg);
+        }
+    }
+
+    // directions of a move, any other op only refreshes
+    public static final int WEST = 1;
+    public static final int SOUTH = 2;
+    public static final int EAST = 3;
+    public static final int NORTH = 4;
+
+    // result of a request for its client: status, then cell and score of the player after it
+    public static final int RESULT_BYTES = 12;
+    public static final int MOVED = 1;
+    public static final int STAYED = 2;  // refresh, wall or another player
+    // forwarded to the group owning player's shard, and only kept here, as the client is 
+    // answered with that group's result
+    public static final int FORWARDED = 3;
+    public static final int EXPIRED = 4;  // done before, and its result is not kept anymore
+    public static final int ABSENT = 5;  // of a read, player is not here, e.g. shard elsewhere
+
+    // n x n maze with k treasures, cell index is y * n + x
+    private final int n, k;
+    // cell -> EMPTY, slot + 1 of the player on it, or -(i + 1) for treasure i
+    private final int[] grid;
+    private static final int EMPTY = 0;
+    private final int[] treasureArray;  // treasure -> cell, -1 if maze is full
+    // players by slot, so a move touches only arrays; slots are local, peers may differ
+    private final HashMap<String, Integer> slotTable;
+    private String[] nameArray;
+    // home group of player's node; players of other groups are here when their shard is 
+    // owned by this group
+    private String[] homeArray;
+    private int[] posArray;  // cell, -1 if maze is full
+    private int[] scoreArray;
+    private int[] freeSlots;  // stack of unused slots below slotCount
+    private int freeCount, slotCount;
+    // random treasure and player placement, replicated so backups pick the same cells
+    private long rngState;
+    // nodes of this group, watched by its primary wherever their players are
+    private final HashSet<String> memberSet;
+    // shards owned as of shard map `mapVersion` its primary went by, so a promoted backup 
+    // carries on from them; every shard before any map, as a group alone owns them all
+    private long ownedShards;
+    private int mapVersion;
+    // last request applied of each client, by name, so a retry after failover is answered 
+    // from here instead of applied again; a new session of the client replaces its entry, 
+    // and entries are kept in order of last use, bounded in count and in age counted by 
+    // seq, so every replica evicts the same ones
+    //
+    // entries live in arrays by session slot like players, linked in order of use from 
+    // sessionHead (least recent) to sessionTail, so a tagged mutation allocates nothing 
+    // unless its client is new
+    private final HashMap<String, Integer> sessionSlotTable;
+    private String[] sessionNameArray;
+    private long[] sessionArray, sessionIdArray, sessionSeqArray;
+    private byte[] sessionResultArray;  // RESULT_BYTES per slot
+    private int[] sessionPrevArray, sessionNextArray;  // -1 at the ends
+    private int sessionHead, sessionTail;
+    private int[] freeSessions;
+    private int freeSessionCount, sessionSlotCount;
+    private static final int SESSION_LIMIT = Integer.getInteger("rcrt.sessionLimit", 4096);
+    private static final long SESSION_AGE = Long.getLong("rcrt.sessionAge", 1 << 20);
+    private long seq;  // number of mutations applied so far
+    // mutations made on primary and not yet drained for replication, not part of state
+    private final ArrayList<Mutation> pending;
+    private Store store;  // WAL every applied mutation goes to, if persisted
+    public App(int n, int k) {
+        this(n, k, System.nanoTime());
+        for (var i = 0; i < k; i += 1) {
+            placeTreasure(i);
+        }
+    }
+
+    private App(int n, int k, long rngState) {
+        this.n = n;
+        this.k = k;
+        grid = new int[n * n];
+        treasureArray = new int[k];
+        slotTable = new HashMap<>();
+        nameArray = new String[16];
+        homeArray = new String[16];
+        posArray = new int[16];
+        scoreArray = new int[16];
+        freeSlots = new int[16];
+        freeCount = 0;
+        slotCount = 0;
+        this.rngState = rngState;
+        memberSet = new HashSet<>();
+        ownedShards = -1L;
+        mapVersion = 0;
+        sessionSlotTable = new HashMap<>();
+        sessionNameArray = new String[16];
+        sessionArray = new long[16];
+        sessionIdArray = new long[16];
+        sessionSeqArray = new long[16];
+        sessionResultArray = new byte[16 * RESULT_BYTES];
+        sessionPrevArray = new int[16];
+        sessionNextArray = new int[16];
+        sessionHead = -1;
+        sessionTail = -1;
+        freeSessions = new int[16];
+        freeSessionCount = 0;
+        sessionSlotCount = 0;
+        seq = 0;
+        pending = new ArrayList<>();
+    }
+
+    // copy of state to encode off appMutex, so a new backup does not stall primary; arrays 
+    // are copied whole, which is a few memcpy even for a big maze
+    private App(App app) {
+        n = app.n;
+        k = app.k;
+        grid = app.grid.clone();
+        treasureArray = app.treasureArray.clone();
+        slotTable = new HashMap<>(app.slotTable);
+        nameArray = app.nameArray.clone();
+        homeArray = app.homeArray.clone();
+        posArray = app.posArray.clone();
+        scoreArray = app.scoreArray.clone();
+        freeSlots = app.freeSlots.clone();
+        freeCount = app.freeCount;
+        slotCount = app.slotCount;
+        rngState = app.rngState;
+        memberSet = new HashSet<>(app.memberSet);
+        ownedShards = app.ownedShards;
+        mapVersion = app.mapVersion;
+        sessionSlotTable = new HashMap<>(app.sessionSlotTable);
+        sessionNameArray = app.sessionNameArray.clone();
+        sessionArray = app.sessionArray.clone();
+        sessionIdArray = app.sessionIdArray.clone();
+        sessionSeqArray = app.sessionSeqArray.clone();
+        sessionResultArray = app.sessionResultArray.clone();
+        sessionPrevArray = app.sessionPrevArray.clone();
+        sessionNextArray = app.sessionNextArray.clone();
+        sessionHead = app.sessionHead;
+        sessionTail = app.sessionTail;
+        freeSessions = app.freeSessions.clone();
+        freeSessionCount = app.freeSessionCount;
+        sessionSlotCount = app.sessionSlotCount;
+        seq = app.seq;
+        pending = new ArrayList<>();  // not part of state
+    }
+
+    public App copy() {
+        return new App(this);
+    }
+
+    // from now on every mutation applied is appended to WAL of store
+    public void persist(Store store) {
+        this.store = store;
     }
 
     public Set<String> playerSet() {
-        return playerTable.keySet();
+        return slotTable.keySet();
+    }
+
+    public Set<String> memberSet() {
+        return memberSet;
     }
 
-    public void createPlayer(String name) {
-        playerTable.put(name, true);  // TODO
+    public String homeOf(String name) {
+        var slot = slotTable.get(name);
+        return slot == null ? null : homeArray[slot];
+    }
+
+    public int scoreOf(String name) {
+        var slot = slotTable.get(name);
+        return slot == null ? 0 : scoreArray[slot];
+    }
+
+    public long seq() {
+        return seq;
+    }
+
+    public boolean ownsShard(int shard) {
+        return (ownedShards >>> shard & 1) != 0;
+    }
+
+    public int mapVersion() {
+        return mapVersion;
+    }
+
+    public void createPlayer(String name, String home) {
+        record(new Mutation(Mutation.CREATE_PLAYER, name, home, 0));
     }
 
     public void removePlayer(String name) {
-        playerTable.remove(name);
+        record(new Mutation(Mutation.REMOVE_PLAYER, name, null, 0));
+    }
+
+    public void addMember(String name) {
+        record(new Mutation(Mutation.ADD_MEMBER, name, null, 0));
+    }
+
+    public void removeMember(String name) {
+        record(new Mutation(Mutation.REMOVE_MEMBER, name, null, 0));
+    }
+
+    // nothing to replicate if the player stays, i.e. refresh, wall or another player; such 
+    // a request changes nothing, so it is not remembered and a retry runs again
+    public byte[] move(String name, int dir, long session, long id) {
+        var slot = slotTable.get(name);
+        if (slot == null || target(slot, dir) == -1) {
+            return result(name, STAYED);
+        }
+        record(new Mutation(Mutation.MOVE, name, null, dir, session, id));
+        return appliedResult(name, session, id);
+    }
+
+    public byte[] request(String name, long session, long id) {
+        record(new Mutation(Mutation.REQUEST, name, null, 0, session, id));
+        return appliedResult(name, session, id);
+    }
+
+    public byte[] result(String name, int status) {
+        var result = new byte[RESULT_BYTES];
+        writeResult(result, 0, name, status);
+        return result;
+    }
+
+    // big-endian ints as ByteBuffer reads them, written in place so a move allocates no 
+    // more than the body its reply carries
+    private void writeResult(byte[] array, int from, String name, int status) {
+        var slot = slotTable.get(name);
+        putInt(array, from, status);
+        putInt(array, from + 4, slot == null ? -1 : posArray[slot]);
+        putInt(array, from + 8, slot == null ? 0 : scoreArray[slot]);
+    }
+
+    private static void putInt(byte[] array, int at, int value) {
+        for (var i = 0; i < 4; i += 1) {
+            array[at + i] = (byte) (value >>> 24 - 8 * i);
+        }
+    }
+
+    public static int statusOf(byte[] result) {
+        var status = 0;
+        for (var i = 0; i < 4; i += 1) {
+            status = status << 8 | result[i] & 0xff;
+        }
+        return status;
+    }
+
+    // result of a read, as if the player refreshed
+    public byte[] peek(String name) {
+        return result(name, slotTable.containsKey(name) ? STAYED : ABSENT);
+    }
+
+    // seq that request was applied at if it is a retry, -1 otherwise; a client sends its 
+    // requests in order, so an earlier id is done too and the later seq covers it
+    public long appliedSeq(String name, long session, long id) {
+        var slot = sessionSlotTable.get(name);
+        return slot != null && sessionArray[slot] == session && id <= sessionIdArray[slot] ? 
+            sessionSeqArray[slot] : -1;
+    }
+
+    // result cached for a request applied already, of which only the last one of each 
+    // client is kept
+    public byte[] appliedResult(String name, long session, long id) {
+        int slot = sessionSlotTable.get(name);
+        if (id != sessionIdArray[slot]) {
+            return result(name, EXPIRED);
+        }
+        var from = slot * RESULT_BYTES;
+        return Arrays.copyOfRange(sessionResultArray, from, from + RESULT_BYTES);
+    }
+
+    public void record(Mutation mutation) {
+        apply(mutation);
+        pending.add(mutation);
+    }
+
+    // mutations with seq in (seq() - size, seq()], in order
+    public List<Mutation> drainPending() {
+        var mutations = new ArrayList<>(pending);
+        pending.clear();
+        return mutations;
+    }
+
+    // forwarded and handed-over mutations may find the player already there or gone, and 
+    // a forwarded move may come again when its request is retried
+    public void apply(Mutation mutation) {
+        var retried = mutation.session() != 0 && 
+            appliedSeq(mutation.name(), mutation.session(), mutation.id()) != -1;
+        var status = STAYED;  // of a tagged mutation, cached for its retry
+        switch (mutation.op()) {
+            case Mutation.CREATE_PLAYER: {
+                var slot = slotTable.get(mutation.name());
+                if (slot != null) {
+                    homeArray[slot] = mutation.home();
+                    break;
+                }
+                slot = allocSlot();
+                slotTable.put(mutation.name(), slot);
+                nameArray[slot] = mutation.name();
+                homeArray[slot] = mutation.home();
+                scoreArray[slot] = mutation.arg();
+                var cell = emptyCell();
+                posArray[slot] = cell;
+                if (cell != -1) {
+                    grid[cell] = slot + 1;
+                }
+                break;
+            }
+            case Mutation.REMOVE_PLAYER: {
+                var slot = slotTable.remove(mutation.name());
+                if (slot == null) {
+                    break;
+                }
+                if (posArray[slot] != -1) {
+                    grid[posArray[slot]] = EMPTY;
+                }
+                nameArray[slot] = null;
+                homeArray[slot] = null;
+                freeSlots[freeCount] = slot;
+                freeCount += 1;
+                break;
+            }
+            case Mutation.ADD_MEMBER:
+                memberSet.add(mutation.name());
+                break;
+            case Mutation.REMOVE_MEMBER: {
+                memberSet.remove(mutation.name());
+                var session = sessionSlotTable.get(mutation.name());
+                if (session != null) {
+                    removeSession(session);  // its session ends with the node
+                }
+                break;
+            }
+            case Mutation.MOVE: {
+                var slot = slotTable.get(mutation.name());
+                if (slot != null && !retried) {
+                    status = moveSlot(slot, mutation.arg()) ? MOVED : STAYED;
+                }
+                break;
+            }
+            case Mutation.REQUEST:
+                status = FORWARDED;
+                break;
+            case Mutation.OWN_SHARDS:
+                ownedShards = mutation.id();
+                mapVersion = mutation.arg();
+                break;
+            default:
+                throw new RuntimeException();
+        }
+        seq += 1;
+        if (mutation.session() != 0 && !retried) {
+            touchSession(mutation.name(), mutation.session(), mutation.id(), status);
+        }
+        if (store != null) {
+            store.append(seq, mutation);
+        }
+    }
+
+    // entry of client's request just applied, moved to the end as most recently used, and 
+    // entries too many or too old are evicted from the front
+    private void touchSession(String name, long session, long id, int status) {
+        var entry = sessionSlotTable.get(name);
+        int slot;
+        if (entry == null) {
+            slot = allocSession(name);
+        } else {
+            slot = entry;
+            unlinkSession(slot);
+        }
+        linkSession(slot);
+        sessionArray[slot] = session;
+        sessionIdArray[slot] = id;
+        sessionSeqArray[slot] = seq;
+        writeResult(sessionResultArray, slot * RESULT_BYTES, name, status);
+        while (
+            sessionSlotTable.size() > SESSION_LIMIT || 
+            sessionSeqArray[sessionHead] < seq - SESSION_AGE
+        ) {
+            removeSession(sessionHead);
+        }
+    }
+
+    private int allocSession(String name) {
+        int slot;
+        if (freeSessionCount > 0) {
+            freeSessionCount -= 1;
+            slot = freeSessions[freeSessionCount];
+        } else {
+            if (sessionSlotCount == sessionArray.length) {
+                var capacity = sessionSlotCount * 2;
+                sessionNameArray = Arrays.copyOf(sessionNameArray, capacity);
+                sessionArray = Arrays.copyOf(sessionArray, capacity);
+                sessionIdArray = Arrays.copyOf(sessionIdArray, capacity);
+                sessionSeqArray = Arrays.copyOf(sessionSeqArray, capacity);
+                sessionResultArray = Arrays.copyOf(sessionResultArray, capacity * RESULT_BYTES);
+                        sessionPrevArray = Arrays.copyOf(sessionPrevArray, capacity);
+                sessionNextArray = Arrays.copyOf(sessionNextArray, capacity);
+                freeSessions = Arrays.copyOf(freeSessions, capacity);
+            }
+            slot = sessionSlotCount;
+            sessionSlotCount += 1;
+        }
+        sessionSlotTable.put(name, slot);
+        sessionNameArray[slot] = name;
+        return slot;
+    }
+
+    private void removeSession(int slot) {
+        unlinkSession(slot);
+        sessionSlotTable.remove(sessionNameArray[slot]);
+        sessionNameArray[slot] = null;
+        freeSessions[freeSessionCount] = slot;
+        freeSessionCount += 1;
+    }
+
+    private void linkSession(int slot) {
+        sessionPrevArray[slot] = sessionTail;
+        sessionNextArray[slot] = -1;
+        if (sessionTail == -1) {
+            sessionHead = slot;
+        } else {
+            sessionNextArray[sessionTail] = slot;
+        }
+        sessionTail = slot;
+    }
+
+    private void unlinkSession(int slot) {
+        int prev = sessionPrevArray[slot], next = sessionNextArray[slot];
+        if (prev == -1) {
+            sessionHead = next;
+        } else {
+            sessionNextArray[prev] = next;
+        }
+        if (next == -1) {
+            sessionTail = prev;
+        } else {
+            sessionPrevArray[next] = prev;
+        }
+    }
+
+    // cell the player would move to, or -1 if it stays
+    private int target(int slot, int dir) {
+        var pos = posArray[slot];
+        if (pos == -1) {
+            return -1;
+        }
+        int x = pos % n, y = pos / n;
+        switch (dir) {
+            case WEST: x -= 1; break;
+            case SOUTH: y += 1; break;
+            case EAST: x += 1; break;
+            case NORTH: y -= 1; break;
+            default: return -1;
+        }
+        if (x < 0 || x >= n || y < 0 || y >= n || grid[y * n + x] > 0) {
+            return -1;
+        }
+        return y * n + x;
+    }
+
+    // false if the player stays
+    private boolean moveSlot(int slot, int dir) {
+        var cell = target(slot, dir);
+        if (cell == -1) {
+            return false;
+        }
+        var content = grid[cell];
+        grid[posArray[slot]] = EMPTY;
+        grid[cell] = slot + 1;
+        posArray[slot] = cell;
+        if (content < 0) {
+            scoreArray[slot] += 1;
+            placeTreasure(-content - 1);  // player already took the cell
+        }
+        return true;
+    }
+
+    private void placeTreasure(int i) {
+        var cell = emptyCell();
+        treasureArray[i] = cell;
+        if (cell != -1) {
+            grid[cell] = -(i + 1);
+        }
+    }
+
+    // arrays grow by doubling, so slots are allocated in amortized O(1)
+    private int allocSlot() {
+        if (freeCount > 0) {
+            freeCount -= 1;
+            return freeSlots[freeCount];
+        }
+        if (slotCount == posArray.length) {
+            var capacity = slotCount * 2;
+            nameArray = Arrays.copyOf(nameArray, capacity);
+            homeArray = Arrays.copyOf(homeArray, capacity);
+            posArray = Arrays.copyOf(posArray, capacity);
+            scoreArray = Arrays.copyOf(scoreArray, capacity);
+            freeSlots = Arrays.copyOf(freeSlots, capacity);
+        }
+        slotCount += 1;
+        return slotCount - 1;
+    }
+
+    // random empty cell, or -1 if there is none; probes a few cells, which almost always 
+    // works in a sparse maze, before scanning from a random one
+    private int emptyCell() {
+        var cells = n * n;
+        if (cells == 0) {
+            return -1;
+        }
+        for (var i = 0; i < 8; i += 1) {
+            var cell = randomCell();
+            if (grid[cell] == EMPTY) {
+                return cell;
+            }
+        }
+        var start = randomCell();
+        for (var i = 0; i < cells; i += 1) {
+            var cell = (start + i) % cells;
+            if (grid[cell] == EMPTY) {
+                return cell;
+            }
+        }
+        return -1;
+    }
+
+    // splitmix64
+    private int randomCell() {
+        rngState += 0x9E3779B97F4A7C15L;
+        var z = rngState;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return (int) Long.remainderUnsigned(z ^ (z >>> 31), n * n);
+    }
+
+    // players and treasures only, the grid is rebuilt from them
+    public void write(ByteBuffer buf) {
+        buf.putLong(seq);
+        buf.putInt(n).putInt(k).putLong(rngState);
+        for (var cell : treasureArray) {
+            buf.putInt(cell);
+        }
+        buf.putInt(slotTable.size());
+        for (var slot : slotTable.values()) {
+            Transport.putString(buf, nameArray[slot]);
+            Transport.putString(buf, homeArray[slot]);
+            buf.putInt(posArray[slot]).putInt(scoreArray[slot]);
+        }
+        buf.putInt(memberSet.size());
+        for (var member : memberSet) {
+            Transport.putString(buf, member);
+        }
+        buf.putLong(ownedShards).putInt(mapVersion);
+        buf.putInt(sessionSlotTable.size());
+        for (var slot = sessionHead; slot != -1; slot = sessionNextArray[slot]) {
+            Transport.putString(buf, sessionNameArray[slot]);
+            buf.putLong(sessionArray[slot]).putLong(sessionIdArray[slot]).putLong(sessionSeqArray[slot]);
+            buf.put(sessionResultArray, slot * RESULT_BYTES, RESULT_BYTES);
+        }
+    }
+
+    // whole state into a heap buffer ready to read, grown by doubling
+    public ByteBuffer encode() {
+        var buf = ByteBuffer.allocate(4096);
+        while (true) {
+            try {
+                write(buf);
+                return buf.flip();
+            } catch (BufferOverflowException e) {
+                buf = ByteBuffer.allocate(buf.capacity() * 2);
+            }
+        }
+    }
+
+    public static App read(ByteBuffer buf) {
+        var seq = buf.getLong();
+        var app = new App(buf.getInt(), buf.getInt(), buf.getLong());
+        app.seq = seq;
+        for (var i = 0; i < app.k; i += 1) {
+            app.treasureArray[i] = buf.getInt();
+            if (app.treasureArray[i] != -1) {
+                app.grid[app.treasureArray[i]] = -(i + 1);
+            }
+        }
+        for (int i = buf.getInt(); i > 0; i -= 1) {
+            var slot = app.allocSlot();
+            app.nameArray[slot] = Transport.getString(buf);
+            app.homeArray[slot] = Transport.getString(buf);
+            app.posArray[slot] = buf.getInt();
+            app.scoreArray[slot] = buf.getInt();
+            app.slotTable.put(app.nameArray[slot], slot);
+            if (app.posArray[slot] != -1) {
+                app.grid[app.posArray[slot]] = slot + 1;
+            }
+        }
+        for (int i = buf.getInt(); i > 0; i -= 1) {
+            app.memberSet.add(Transport.getString(buf));
+        }
+        app.ownedShards = buf.getLong();
+        app.mapVersion = buf.getInt();
+        for (int i = buf.getInt(); i > 0; i -= 1) {
+            var slot = app.allocSession(Transport.getString(buf));  // in order of use
+            app.linkSession(slot);
+            app.sessionArray[slot] = buf.getLong();
+            app.sessionIdArray[slot] = buf.getLong();
+            app.sessionSeqArray[slot] = buf.getLong();
+            buf.get(app.sessionResultArray, slot * RESULT_BYTES, RESULT_BYTES);
+        }
+        return app;
     }
 }
@@ -0,0 +1,403 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.*;
+import java.util.zip.CRC32;
+
+// optional persistence of a node's app under rcrt.dataDir: an append-only WAL of mutations,
+// written and fsynced in groups by its own thread, on top of a checkpoint written through a
+// memory-mapped file; a restarted node reads the checkpoint and replays the WAL after it
+public class Store {
+    private static final Logger log = Logger.getGlobal();
+    // ack: commits of primary and acks of backup wait for fsync of their mutations; batch:
+    // each group of mutations is fsynced in background and nothing waits for it, so a crash
+    // of every replica may lose the last groups
+    public static final boolean FSYNC_ACK = !System.getProperty("rcrt.fsync", "ack").equals("batch");
+    // WAL bytes after which app is checkpointed and WAL starts a fresh segment
+    private static final long CHECKPOINT_BYTES = Long.getLong("rcrt.checkpointBytes", 16 << 20);
+
+    private final Path dir;
+    // lock order: checkpointMutex -> ioMutex -> this -> durableMutex, and appMutex of game
+    // before all of them
+    private final Object checkpointMutex = new Object();
+    private final Object ioMutex = new Object();  // held across writes to segment
+
+    // guarded by this, records appended and not written yet
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private long appendedSeq;
+    private FileChannel segment;
+    private long segmentFirst;  // seq of first record in segment
+    private long segmentBytes;
+    private long epoch = 0;  // bumped whenever segment changes
+    private final CRC32 crc = new CRC32();  // of appended records
+    // copy of app taken by reset and not checkpointed yet, WAL is held back meanwhile so the
+    // fresh segment never reaches disk ahead of the checkpoint it continues
+    private App resetCopy;
+
+    private final Object durableMutex = new Object();
+    private long durableSeq;  // highest seq on disk, guarded by durableMutex
+    private static record Waiter(long seq, Runnable then) {}
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();  // in seq order
+
+    private Store(Path dir) {
+        this.dir = dir;
+    }
+
+    // null if persistence is not enabled
+    public static Store open(String name) throws IOException {
+        var dataDir = System.getProperty("rcrt.dataDir");
+        if (dataDir == null) {
+            return null;
+        }
+        var dir = Paths.get(dataDir, name);
+        Files.createDirectories(dir);
+        return new Store(dir);
+    }
+
+    // `onDurable` is called on WAL thread after each group reaches disk
+    public void start(Runnable onDurable) {
+        var thread = new Thread(() -> {
+            try {
+                runWal(onDurable);
+            } catch (Throwable e) {
+                log.throwing(Store.class.getName(), "wal", e);
+                System.exit(1);
+            }
+        }, "wal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // latest checkpoint with WAL replayed after it, null if nothing stored; replay stops at
+    // first torn or missing record, which was never acked under ack policy
+    public App recover() throws IOException {
+        var checkpoint = dir.resolve("checkpoint");
+        if (!Files.exists(checkpoint)) {
+            return null;
+        }
+        var start = System.nanoTime();
+        App app;
+        long checkpointBytes, walBytes = 0;
+        try (var channel = FileChannel.open(checkpoint, StandardOpenOption.READ)) {
+            checkpointBytes = channel.size();
+            app = App.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, checkpointBytes));
+        }
+        var checkpointSeq = app.seq();
+        var crc = new CRC32();
+        replay:
+        for (var file : segmentFiles()) {
+            if (firstOf(file) <= checkpointSeq) {
+                continue;  // left by a crash before its deletion
+            }
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                var buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                walBytes += channel.size();
+                while (buf.remaining() >= 8) {
+                    int len = buf.getInt(), sum = buf.getInt();
+                    if (len < 8 || len > buf.remaining()) {
+                        break replay;
+                    }
+                    var record = buf.slice(buf.position(), len);
+                    buf.position(buf.position() + len);
+                    crc.reset();
+                    crc.update(record.duplicate());
+                    if ((int) crc.getValue() != sum) {
+                        break replay;
+                    }
+                    var seq = record.getLong();
+                    if (seq <= app.seq()) {
+                        continue;  // covered by checkpoint
+                    }
+                    if (seq != app.seq() + 1) {
+                        break replay;
+                    }
+                    app.apply(App.Mutation.read(record));
+                }
+            }
+        }
+        log.info(
+            "recover: seq = " + app.seq() + ", checkpoint seq = " + checkpointSeq +
+            ", checkpoint bytes = " + checkpointBytes + ", wal bytes = " + walBytes +
+            ", time = " + (System.nanoTime() - start) / 1000000 + "ms"
+        );
+        return app;
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        var fileList = new ArrayList<Path>();
+        try (var stream = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (var file : stream) {
+                fileList.add(file);
+            }
+        }
+        Collections.sort(fileList);  // names are zero padded first seq
+        return fileList;
+    }
+
+    private static Path segmentName(Path dir, long first) {
+        return dir.resolve(String.format("wal-%020d.log", first));
+    }
+
+    private static long firstOf(Path file) {
+        var name = file.getFileName().toString();
+        return Long.parseLong(name.substring("wal-".length(), name.length() - ".log".length()));
+    }
+
+    private void deleteSegments(long before) throws IOException {
+        for (var file : segmentFiles()) {
+            if (firstOf(file) < before) {
+                Files.deleteIfExists(file);  // a checkpoint may have raced a reset to it
+            }
+        }
+    }
+
+    // with appMutex of game held, from App.apply; stays in memory until WAL thread takes it
+    public synchronized void append(long seq, App.Mutation mutation) {
+        var wasEmpty = buffer.position() == 0;
+        var start = buffer.position();
+        while (true) {
+            try {
+                buffer.putInt(-1).putInt(-1).putLong(seq);
+                mutation.write(buffer);
+                break;
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip().limit(start));
+            }
+        }
+        var len = buffer.position() - start - 8;
+        crc.reset();
+        crc.update(buffer.array(), start + 8, len);
+        buffer.putInt(start, len).putInt(start + 4, (int) crc.getValue());
+        appendedSeq = seq;
+        if (wasEmpty) {
+            notifyAll();
+        }
+    }
+
+    public long durableSeq() {
+        synchronized (durableMutex) {
+            return durableSeq;
+        }
+    }
+
+    // run `then` on WAL thread once mutations up to seq are on disk, or right away if they are
+    public void afterDurable(long seq, Runnable then) {
+        synchronized (durableMutex) {
+            if (durableSeq < seq) {
+                waiters.add(new Waiter(seq, then));
+                return;
+            }
+        }
+        then.run();
+    }
+
+    // with ioMutex held
+    private List<Waiter> setDurable(long seq) {
+        var readyList = new ArrayList<Waiter>();
+        synchronized (durableMutex) {
+            durableSeq = seq;
+            while (!waiters.isEmpty() && waiters.peekFirst().seq() <= seq) {
+                readyList.add(waiters.pollFirst());
+            }
+        }
+        return readyList;
+    }
+
+    private void runWal(Runnable onDurable) throws Exception {
+        while (true) {
+            synchronized (this) {
+                while (buffer.position() == 0 || resetCopy != null) {
+                    wait();
+                }
+            }
+            List<Waiter> readyList;
+            synchronized (ioMutex) {
+                ByteBuffer out;
+                FileChannel channel;
+                long seq;
+                synchronized (this) {
+                    if (buffer.position() == 0 || resetCopy != null) {
+                        continue;  // taken by a rotation, or held back by a reset
+                    }
+                    out = buffer.flip();
+                    buffer = spare.clear();
+                    spare = out;
+                    channel = segment;
+                    seq = appendedSeq;
+                }
+                // one write and fsync for every record appended since last round
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                channel.force(false);
+                synchronized (this) {
+                    segmentBytes += out.limit();
+                    if (segmentBytes >= CHECKPOINT_BYTES) {
+                        notifyAll();  // checkpoint thread
+                    }
+                }
+                readyList = setDurable(seq);
+            }
+            for (var waiter : readyList) {
+                waiter.then().run();
+            }
+            onDurable.run();
+        }
+    }
+
+    // with ioMutex and this held
+    private void openSegment(long seq) throws IOException {
+        if (segment != null) {
+            segment.close();
+        }
+        segmentFirst = seq + 1;
+        segment = FileChannel.open(
+            segmentName(dir, segmentFirst),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+        );
+        segmentBytes = 0;
+        epoch += 1;
+    }
+
+    // with appMutex of game held, when app is replaced as a whole, e.g. by snapshot: its
+    // mutations go to a fresh segment from now on, and a copy of it is taken for
+    // checkpointReset to write off appMutex, like the periodic checkpoint
+    public void reset(App app) throws Exception {
+        var copy = app.copy();
+        synchronized (ioMutex) {
+            synchronized (this) {
+                buffer.clear();  // records of the history app replaces
+                appendedSeq = app.seq();
+                if (segment != null) {
+                    segment.close();
+                    segment = null;
+                }
+                // before the checkpoint, so a crash in between leaves the old one alone
+                // rather than with a WAL of another history
+                deleteSegments(Long.MAX_VALUE);
+                openSegment(app.seq());
+                resetCopy = copy;
+            }
+            synchronized (durableMutex) {
+                durableSeq = -1;  // nothing of this history is on disk until the checkpoint
+                // waiters above seq belong to the replaced history
+                waiters.removeIf(waiter -> waiter.seq() > app.seq());
+            }
+        }
+        app.persist(this);
+    }
+
+    // off appMutex, after reset: writes the copy it took, unless the caller of a later reset
+    // has written that one's already, and then lets WAL go on; app of the reset is on disk
+    // once this returns
+    public void checkpointReset() throws Exception {
+        List<Waiter> readyList;
+        synchronized (checkpointMutex) {
+            App copy;
+            synchronized (this) {
+                copy = resetCopy;
+            }
+            if (copy == null) {
+                return;
+            }
+            writeCheckpoint(copy);
+            synchronized (ioMutex) {
+                synchronized (this) {
+                    if (resetCopy != copy) {
+                        return;  // replaced meanwhile, and checkpointed by its own caller
+                    }
+                    resetCopy = null;
+                    notifyAll();  // WAL thread
+                }
+                readyList = setDurable(copy.seq());
+            }
+        }
+        for (var waiter : readyList) {
+            waiter.then().run();
+        }
+    }
+
+    // blocks checkpoint thread until WAL has grown enough since last checkpoint
+    public synchronized void awaitCheckpoint() throws InterruptedException {
+        while (segmentBytes < CHECKPOINT_BYTES) {
+            wait();
+        }
+    }
+
+    // with appMutex of game held, seq is of app as is; the rest of current segment is written
+    // out, and returns epoch for the checkpoint of app at seq
+    public long rotate(long seq) throws Exception {
+        List<Waiter> readyList;
+        long rotated;
+        synchronized (ioMutex) {
+            synchronized (this) {
+                assert seq == appendedSeq;
+                if (resetCopy != null) {
+                    return -1;  // checkpoint of the reset is newer
+                }
+                var out = buffer.flip();
+                while (out.hasRemaining()) {
+                    segment.write(out);
+                }
+                buffer.clear();
+                segment.force(false);
+                openSegment(seq);
+                rotated = epoch;
+            }
+            readyList = setDurable(seq);
+        }
+        for (var waiter : readyList) {
+            waiter.then().run();
+        }
+        return rotated;
+    }
+
+    // off appMutex, `copy` is the app at the seq passed to rotate; skipped if a reset has
+    // taken over meanwhile, or was pending at rotation, since its checkpoint is newer
+    public void checkpoint(App copy, long rotated) throws Exception {
+        synchronized (checkpointMutex) {
+            synchronized (this) {
+                if (rotated != epoch) {
+                    return;
+                }
+            }
+            writeCheckpoint(copy);
+        }
+    }
+
+    // with checkpointMutex held; written through a mapping of a temporary file, then moved
+    // over the old one, and segments before current one are covered from then on
+    private void writeCheckpoint(App app) throws IOException {
+        var start = System.nanoTime();
+        var buf = app.encode();
+        var size = buf.remaining();
+        var temp = dir.resolve("checkpoint.tmp");
+        try (var channel = FileChannel.open(
+            temp, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            var mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mapped.put(buf);
+            mapped.force();
+        }
+        Files.move(
+            temp, dir.resolve("checkpoint"),
+            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING
+        );
+        try (var channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);  // the rename
+        }
+        long first;
+        synchronized (this) {
+            first = segmentFirst;
+        }
+        deleteSegments(first);
+        log.fine(
+            "checkpoint: seq = " + app.seq() + ", bytes = " + size +
+            ", time = " + (System.nanoTime() - start) / 1000000 + "ms"
+        );
+    }
+}
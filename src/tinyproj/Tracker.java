@@ -3,119 +3,889 @@ import java.nio.*;
 import java.nio.channels.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 
 public class Tracker {
+    // backups in promotion order, which is also the chain order under chain replication
     public static record View(
         int id, 
         String primary, 
-        String backup, 
-        InetSocketAddress serverAddr
-    ) implements Serializable {
+        List<String> backupList, 
+        InetSocketAddress serverAddr,
+        // for lease reads, chain links, and promotion on any tracker
+        List<InetSocketAddress> backupAddrList
+    ) {
         public String toString() {
-            return String.format("!! #%d: %s@%s; %s !!", id, primary, serverAddr, backup);
+            return String.format(
+                "!! #%d: %s@%s; %s !!", id, primary, serverAddr, String.join(", ", backupList)
+            );
+        }
+
+        // address of a node in this view, or null
+        public InetSocketAddress addrOf(String name) {
+            if (name.equals(primary)) {
+                return serverAddr;
+            }
+            var i = backupList.indexOf(name);
+            return i == -1 ? null : backupAddrList.get(i);
+        }
+
+        public void write(ByteBuffer buf) {
+            buf.putInt(id);
+            Transport.putString(buf, primary);
+            Transport.putAddress(buf, serverAddr);
+            buf.putInt(backupList.size());
+            for (var i = 0; i < backupList.size(); i += 1) {
+                Transport.putString(buf, backupList.get(i));
+                Transport.putAddress(buf, backupAddrList.get(i));
+            }
+        }
+
+        public static View read(ByteBuffer buf) {
+            var id = buf.getInt();
+            var primary = Transport.getString(buf);
+            var serverAddr = Transport.getAddress(buf);
+            var backupList = new ArrayList<String>();
+            var backupAddrList = new ArrayList<InetSocketAddress>();
+            for (int i = buf.getInt(); i > 0; i -= 1) {
+                backupList.add(Transport.getString(buf));
+                backupAddrList.add(Transport.getAddress(buf));
+            }
+            return new View(id, primary, backupList, serverAddr, backupAddrList);
+        }
+    }
+
+    // players are partitioned into SHARDS slots by hash of name, and slots are assigned to 
+    // groups by consistent hashing, so a new group takes over only its fair share of slots
+    public static final int SHARDS = 64;
+    private static final int VNODES = 16;  // ring points per group
+
+    // position on hash ring in [0, 2^32)
+    private static long point(String key) {
+        var h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return Integer.toUnsignedLong(h);
+    }
+
+    public static int shardOf(String name) {
+        return (int) (point(name) * SHARDS >>> 32);
+    }
+
+    public static record ShardMap(
+        int version,
+        List<String> groupList,
+        List<InetSocketAddress> primaryList,  // server address of each group's primary
+        short[] ownerArray  // index into groupList of each shard
+    ) {
+        // every shard goes to the group of first ring point at or after the shard's start
+        public static ShardMap compute(int version, SortedMap<String, InetSocketAddress> primaryTable) {
+            var groupList = new ArrayList<>(primaryTable.keySet());
+            var ring = new TreeMap<Long, Integer>();
+            for (var i = 0; i < groupList.size(); i += 1) {
+                for (var v = 0; v < VNODES; v += 1) {
+                    ring.put(point(groupList.get(i) + "#" + v), i);
+                }
+            }
+            var ownerArray = new short[SHARDS];
+            for (var shard = 0; shard < SHARDS && !ring.isEmpty(); shard += 1) {
+                var entry = ring.ceilingEntry(((long) shard << 32) / SHARDS);
+                if (entry == null) {
+                    entry = ring.firstEntry();
+                }
+                ownerArray[shard] = (short) (int) entry.getValue();
+            }
+            return new ShardMap(
+                version, groupList, new ArrayList<>(primaryTable.values()), ownerArray
+            );
+        }
+
+        public boolean sameAs(ShardMap other) {
+            return other != null && groupList.equals(other.groupList) && 
+                primaryList.equals(other.primaryList) && Arrays.equals(ownerArray, other.ownerArray);
+        }
+
+        // null if no group at all
+        public String owner(int shard) {
+            return groupList.isEmpty() ? null : groupList.get(ownerArray[shard]);
+        }
+
+        public List<Integer> shardsOf(String group) {
+            var i = groupList.indexOf(group);
+            var shardList = new ArrayList<Integer>();
+            for (var shard = 0; shard < SHARDS && i != -1; shard += 1) {
+                if (ownerArray[shard] == i) {
+                    shardList.add(shard);
+                }
+            }
+            return shardList;
+        }
+
+        public InetSocketAddress primaryOf(String group) {
+            var i = groupList.indexOf(group);
+            return i == -1 ? null : primaryList.get(i);
+        }
+
+        public void write(ByteBuffer buf) {
+            buf.putInt(version);
+            buf.putInt(groupList.size());
+            for (var i = 0; i < groupList.size(); i += 1) {
+                Transport.putString(buf, groupList.get(i));
+                Transport.putAddress(buf, primaryList.get(i));
+            }
+            for (var owner : ownerArray) {
+                buf.putShort(owner);
+            }
+        }
+
+        public static ShardMap read(ByteBuffer buf) {
+            var version = buf.getInt();
+            var groupList = new ArrayList<String>();
+            var primaryList = new ArrayList<InetSocketAddress>();
+            for (int i = buf.getInt(); i > 0; i -= 1) {
+                groupList.add(Transport.getString(buf));
+                primaryList.add(Transport.getAddress(buf));
+            }
+            var ownerArray = new short[SHARDS];
+            for (var shard = 0; shard < SHARDS; shard += 1) {
+                ownerArray[shard] = buf.getShort();
+            }
+            return new ShardMap(version, groupList, primaryList, ownerArray);
         }
     }
 
     private static final Logger log = Logger.getGlobal();
+    private static final long RETRANSMIT_INTERVAL = 100;
+    private static final int MAX_RETRANSMIT = 10;  // before dropping subscriber
+    private static final long RESUBSCRIBE_INTERVAL = RETRANSMIT_INTERVAL * MAX_RETRANSMIT;
+    // channels bound to tracker port (with SO_REUSEPORT if more than one), each with its own 
+    // receiving thread that parses inline, or hands datagrams to parser threads sharded by 
+    // sender (so each sender keeps its order) if asked for
+    // parsers are experimental and off by default: with datagrams as small as tracker's, the 
+    // hand-off costs more than the parsing it offloads, and no workload here has shown a gain
+    private static final int RECEIVERS = Integer.getInteger("rcrt.trackerReceivers", 1);
+    private static final int PARSERS = Integer.getInteger("rcrt.trackerParsers", 0);
+    private static final int POOLED = 16;  // buffers per receiver lent to parsers
+    private static final int BATCH = 256;  // inbound messages handled per sequencer round
+    // replication factor, i.e. primary and up to REPLICAS - 1 backups in each view
+    private static final int REPLICAS = Integer.getInteger("rcrt.replicas", 2);
+
+    // all tracker addresses in leader priority order, e.g. "host:port,host:port,host:port", 
+    // empty for a single unreplicated tracker
+    static List<InetSocketAddress> trackerAddrs() {
+        var addrs = new ArrayList<InetSocketAddress>();
+        for (var entry : System.getProperty("rcrt.trackers", "").split(",")) {
+            if (!entry.isBlank()) {
+                var sep = entry.lastIndexOf(':');
+                addrs.add(new InetSocketAddress(
+                    entry.substring(0, sep).strip(), Integer.parseInt(entry.substring(sep + 1).strip())
+                ));
+            }
+        }
+        return addrs;
+    }
+
     public static void main(String[] args) throws Exception {
         log.setLevel(Level.ALL);
 
-        var channel = DatagramChannel.open();
-        channel.bind(new InetSocketAddress("", Integer.parseInt(args[0])));
-        int n = Integer.parseInt(args[1]), k = Integer.parseInt(args[2]);
-        log.fine("tracker start: addr = " + channel.getLocalAddress());
-
-        var addrTable = new HashMap<String, InetSocketAddress>();
-        var view = new View(0, null, null, null);
-        while (true) {
-            var buf = ByteBuffer.allocate(1024);
-            var remoteAddr = channel.receive(buf);
-            buf.flip();
-            int msgType = buf.getInt(), msgLen = buf.getInt();
-            assert msgLen == buf.remaining();
-            switch (msgType) {
-                case Transport.QueryMessage.TYPE: {
-                    var msg = (Transport.QueryMessage) Transport.parse(buf);
+        var channelList = new ArrayList<DatagramChannel>();
+        for (var i = 0; i < RECEIVERS; i += 1) {
+            var channel = DatagramChannel.open();
+            if (RECEIVERS > 1) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress("", Integer.parseInt(args[0])));
+            channelList.add(channel);
+        }
+        var server = new Server(channelList, Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        log.fine(
+            "tracker start: addr = " + channelList.get(0).getLocalAddress() + ", index = " + server.index
+        );
+        server.run();
+    }
+
+    // primary-backup among trackers: the first available tracker in priority order leads, 
+    // proposes every view transition to the others, and pushes a view to subscribers only after 
+    // a majority holds it, so a committed view survives crash of any minority of trackers
+    //
+    // every leadership has its own term, and trackers only accept views of the highest term 
+    // they have seen, so a deposed leader (e.g. back from a long pause) cannot get a majority 
+    // for its views anymore; a new leader first collects accepted views of a majority and 
+    // carries on from the one of highest term, which includes every view committed before
+    //
+    // every named group is an independent primary-backup cluster with its own view history, 
+    // while leadership and replication traffic are shared by all groups
+    //
+    // datagrams are received on `channelList` and parsed there or on `parserList`, and all 
+    // state below is owned by the single sequencer thread running `run`, so view transitions 
+    // keep arrival order and replies of a round go out together through `outbox`
+    private static class Server {
+        private static record Inbound(SocketAddress remoteAddr, Object msg) {}
+
+        private final List<DatagramChannel> channelList;
+        private final ArrayList<ExecutorService> parserList = new ArrayList<>();
+        private final LinkedBlockingQueue<Inbound> inbox = new LinkedBlockingQueue<>();
+        private final Transport.DatagramOutbox outbox = new Transport.DatagramOutbox();
+        private final int n, k;
+        private final List<InetSocketAddress> peerAddrs;
+        private final int index;
+        private final FailureDetector detector = new FailureDetector();
+        private final long startTime = System.currentTimeMillis();
+        private boolean leading = false;
+        // highest term seen, and own ones are `index` modulo tracker count so no two trackers 
+        // lead in the same term
+        private int term = 0;
+        private final ConcurrentHashMap<String, Group> groupTable = new ConcurrentHashMap<>();
+        // derived from accepted views of all groups, so every tracker computes the same one, 
+        // and versioned by sum of their view ids which only grows
+        private ShardMap shardMap = ShardMap.compute(0, new TreeMap<>());
+
+        private class Group {
+            private final String name;
+            private final HashMap<String, InetSocketAddress> addrTable = new HashMap<>();
+            private View view = new View(0, null, List.of(), null, List.of());  // newest accepted view
+            private int viewTerm = 0;  // term `view` was accepted in
+            private final HashSet<Integer> ackSet = new HashSet<>();  // peers holding `view`
+            private View committed;  // last view pushed to subscribers while leading
+            // while leading, views accepted by peers are collected in `term` before proposing 
+            // anything, and the one of highest term is taken over
+            private int prepareTerm = -1;
+            private boolean prepared = false;
+            private final HashSet<Integer> promiseSet = new HashSet<>();
+            private View bestView;
+            private int bestTerm;
+
+            // every querying node is subscribed to view changes, and is pushed committed view 
+            // until acked, with retransmit count
+            private final HashSet<SocketAddress> subscriberSet = new HashSet<>();
+            private final HashMap<SocketAddress, Integer> unackedTable = new HashMap<>();
+
+            public Group(String name) {
+                this.name = name;
+            }
+
+            private void retransmit() {
+                var iter = unackedTable.entrySet().iterator();
+                while (iter.hasNext()) {
+                    var entry = iter.next();
+                    if (entry.getValue() == MAX_RETRANSMIT) {
+                        log.info("drop subscriber: " + name + "/" + entry.getKey());
+                        subscriberSet.remove(entry.getKey());
+                        iter.remove();
+                        continue;
+                    }
+                    entry.setValue(entry.getValue() + 1);
+                    outbox.add(
+                        entry.getKey(), Transport.ViewMessage.TYPE, 
+                        new Transport.ViewMessage(committed, n, k, REPLICAS, shardMap)
+                    );
+                }
+            }
+
+            private void broadcastState() {
+                for (var i = 0; i < peerAddrs.size(); i += 1) {
+                    if (i != index) {
+                        sendState(peerAddrs.get(i));
+                    }
+                }
+            }
+
+            private void sendState(SocketAddress receiver) {
+                outbox.add(
+                    receiver, Transport.TrackerStateMessage.TYPE, 
+                    new Transport.TrackerStateMessage(index, term, viewTerm, name, view)
+                );
+            }
+
+            // start collecting accepted views once per term of leading
+            private void prepare() {
+                if (!leading || prepareTerm == term) {
+                    return;
+                }
+                prepareTerm = term;
+                prepared = false;
+                committed = null;
+                promiseSet.clear();
+                bestView = view;
+                bestTerm = viewTerm;
+                broadcastState();
+                checkPrepared();
+            }
+
+            private void checkPrepared() {
+                if (prepared || promiseSet.size() + 1 < majority()) {
+                    return;
+                }
+                prepared = true;
+                if (!bestView.equals(view)) {
+                    log.info("view change: " + name + "\n" + bestView);
+                }
+                view = bestView;
+                viewTerm = term;
+                propose();
+            }
+
+            // successor of current view, with addresses of its nodes kept from it as far as possible
+            private View nextView(String primary, List<String> backupList) {
+                var backupAddrList = new ArrayList<InetSocketAddress>();
+                for (var backup : backupList) {
+                    backupAddrList.add(addrOf(backup));
+                }
+                return new View(view.id() + 1, primary, backupList, addrOf(primary), backupAddrList);
+            }
+
+            private InetSocketAddress addrOf(String name) {
+                var addr = view.addrOf(name);
+                return addr != null ? addr : addrTable.get(name);
+            }
+
+            // append as last backup if it is not in view yet and there is room
+            private void appendBackup(List<String> backupList, String primary, String name) {
+                if (
+                    name != null && !name.equals(primary) && !backupList.contains(name) && 
+                    backupList.size() < REPLICAS - 1
+                ) {
+                    backupList.add(name);
+                }
+            }
+
+            private void changeView(View view) {
+                this.view = view;
+                viewTerm = term;
+                log.info("view change: " + name + "\n" + view);
+                propose();
+            }
+
+            private void propose() {
+                ackSet.clear();
+                broadcastState();
+                checkCommit();
+            }
+
+            private void checkCommit() {
+                if (
+                    !leading || !prepared || view == committed || ackSet.size() + 1 < majority()
+                ) {
+                    return;
+                }
+                committed = view;
+                if (view.id() != 0) {
+                    updateShardMap(this);
+                }
+            }
+
+            private void pushAll() {
+                for (var subscriber : subscriberSet) {
+                    push(subscriber);
+                }
+            }
+
+            private void push(SocketAddress receiver) {
+                unackedTable.put(receiver, 0);
+                outbox.add(
+                    receiver, Transport.ViewMessage.TYPE, 
+                    new Transport.ViewMessage(committed, n, k, REPLICAS, shardMap)
+                );
+            }
+
+            // requester always gets current view, all subscribers get it on commit
+            private void reply(SocketAddress requester) {
+                if (view == committed && view.id() != 0) {
+                    push(requester);
+                }
+            }
+
+            private void handle(SocketAddress remoteAddr, Object message) {
+                prepare();  // for a group this leader has not seen before
+                if (message instanceof Transport.TrackerStateMessage msg) {
+                    // server has raised `term` to the sender's already if it was higher
+                    if (msg.term() < term) {
+                        sendState(remoteAddr);  // so the sender learns it is behind
+                        return;
+                    }
+                    if (leading) {
+                        // a peer's accepted view, taken over if of highest term
+                        if (prepared) {
+                            return;
+                        }
+                        promiseSet.add(msg.index());
+                        if (
+                            msg.viewTerm() > bestTerm || 
+                            msg.viewTerm() == bestTerm && msg.view().id() > bestView.id()
+                        ) {
+                            bestView = msg.view();
+                            bestTerm = msg.viewTerm();
+                        }
+                        checkPrepared();
+                        return;
+                    }
+                    if (msg.index() != ownerOf(term)) {
+                        return;
+                    }
+                    if (msg.viewTerm() != term) {
+                        sendState(remoteAddr);  // leader is collecting accepted views
+                        return;
+                    }
+                    // follow the leader of current term, and ack exactly what it proposed
+                    if (!msg.view().equals(view)) {
+                        view = msg.view();
+                        log.info("view change: " + name + "\n" + view);
+                    }
+                    viewTerm = term;
+                    outbox.add(
+                        remoteAddr, Transport.TrackerAckMessage.TYPE, 
+                        new Transport.TrackerAckMessage(index, term, name, view.id())
+                    );
+                } else if (message instanceof Transport.TrackerAckMessage msg) {
+                    if (leading && prepared && msg.term() == term && msg.viewId() == view.id()) {
+                        ackSet.add(msg.index());
+                        checkCommit();
+                    }
+                } else if (message instanceof Transport.QueryMessage msg) {
+                    // every tracker learns nodes, only leader answers
                     log.info(msg.toString());
                     addrTable.put(msg.name(), msg.addr());
+                    subscriberSet.add(remoteAddr);
+                    if (!leading || !prepared) {
+                        return;
+                    }
+                    var backupList = new ArrayList<>(view.backupList());
+                    appendBackup(backupList, view.primary(), msg.name());
                     if (view.id() == 0) {
-                        view = new View(1, msg.name(), null, msg.addr());
-                        log.info("view change:\n" + view);
-                    } else if (view.id() == 1) {
-                        view = new View(2, view.primary(), msg.name(), view.serverAddr());
-                        log.info("view change:\n" + view);
+                        changeView(new View(1, msg.name(), List.of(), msg.addr(), List.of()));
+                    } else if (backupList.size() > view.backupList().size()) {
+                        changeView(nextView(view.primary(), backupList));
+                    } else {
+                        reply(remoteAddr);
                     }
-                    break;
-                }
-                case Transport.PlayerFailMessage.TYPE: {
-                    var msg = (Transport.PlayerFailMessage) Transport.parse(buf);
+                } else if (message instanceof Transport.PlayerFailMessage msg) {
                     log.info(msg.toString());
-                    if (msg.viewId() == view.id()) {
-                        if (msg.failed().equals(view.primary())) {
-                            assert !msg.nextBackup().equals(view.backup());
-                            view = new View(
-                                view.id() + 1, view.backup(), msg.nextBackup(), 
-                                addrTable.get(view.backup())
-                            );
-                            log.info("view change:\n" + view);
-                        } else if (msg.failed().equals(view.backup())) {
-                            view = new View(
-                                view.id() + 1, view.primary(), msg.nextBackup(), view.serverAddr()
-                            );
-                            log.info("view change:\n" + view);
+                    if (!leading || !prepared) {
+                        return;
+                    }
+                    // a view not committed yet is unknown to nodes, so they retry after its commit
+                    if (view != committed || msg.viewId() != view.id()) {
+                        reply(remoteAddr);
+                    } else if (msg.failed() == null) {
+                        // nothing failed, primary recruits a backup into a view short of them
+                        var backupList = new ArrayList<>(view.backupList());
+                        appendBackup(backupList, view.primary(), msg.nextBackup());
+                        if (backupList.size() > view.backupList().size()) {
+                            changeView(nextView(view.primary(), backupList));
                         } else {
-                            throw new RuntimeException();
+                            reply(remoteAddr);
+                        }
+                    } else if (msg.failed().equals(view.primary())) {
+                        if (view.backupList().isEmpty()) {
+                            log.info("no backup to promote: " + name);
+                            reply(remoteAddr);
+                            return;
                         }
+                        // first backup takes over, and the rest stay in order
+                        var backupList = new ArrayList<>(view.backupList());
+                        var primary = backupList.remove(0);
+                        appendBackup(backupList, primary, msg.nextBackup());
+                        changeView(nextView(primary, backupList));
+                    } else if (view.backupList().contains(msg.failed())) {
+                        var backupList = new ArrayList<>(view.backupList());
+                        backupList.remove(msg.failed());
+                        appendBackup(backupList, view.primary(), msg.nextBackup());
+                        changeView(nextView(view.primary(), backupList));
+                    } else {
+                        throw new RuntimeException();
                     }
-                    break;
-                }
-                default:
+                } else if (message instanceof Transport.ViewAckMessage msg) {
+                    if (
+                        committed != null && msg.viewId() == committed.id() && 
+                        msg.mapVersion() == shardMap.version()
+                    ) {
+                        unackedTable.remove(remoteAddr);
+                    }
+                } else {
                     throw new RuntimeException();
+                }
+            }
+        }
+
+        public Server(List<DatagramChannel> channelList, int n, int k) throws Exception {
+            this.channelList = channelList;
+            this.n = n;
+            this.k = k;
+            peerAddrs = trackerAddrs();
+            var port = ((InetSocketAddress) channelList.get(0).getLocalAddress()).getPort();
+            var index = -1;
+            for (var i = 0; i < peerAddrs.size(); i += 1) {
+                var addr = peerAddrs.get(i);
+                if (addr.getPort() == port && NetworkInterface.getByInetAddress(addr.getAddress()) != null) {
+                    index = i;
+                }
+            }
+            if (peerAddrs.isEmpty()) {
+                index = 0;
+            } else if (index == -1) {
+                throw new RuntimeException("not listed in rcrt.trackers");
+            }
+            this.index = index;
+        }
+
+        private int majority() {
+            return Math.max(peerAddrs.size(), 1) / 2 + 1;
+        }
+
+        private int ownerOf(int term) {
+            return term % Math.max(peerAddrs.size(), 1);
+        }
+
+        // smallest own term above every term seen
+        private int nextTerm() {
+            var size = Math.max(peerAddrs.size(), 1);
+            return (term / size + 1) * size + index;
+        }
+
+        private void stepDown() {
+            log.info("step down: term = " + term);
+            leading = false;
+            for (var group : groupTable.values()) {
+                group.unackedTable.clear();
+            }
+        }
+
+        // first tracker in priority order which is not suspected, after grace period to hear 
+        // from peers on startup
+        private int leader() {
+            for (var i = 0; i < index; i += 1) {
+                if (detector.isAvailable(i)) {
+                    return i;
+                }
+            }
+            if (
+                peerAddrs.size() > 1 && 
+                System.currentTimeMillis() - startTime < 5 * FailureDetector.HEARTBEAT_INTERVAL
+            ) {
+                return -1;
+            }
+            return index;
+        }
+
+        public void run() throws Exception {
+            for (var i = 0; i < PARSERS; i += 1) {
+                parserList.add(Executors.newSingleThreadExecutor());
+            }
+            for (var channel : channelList) {
+                new Thread(() -> receive(channel), "tracker-receive").start();
+            }
+
+            var batch = new ArrayList<Inbound>();
+            var nextRetransmit = System.currentTimeMillis() + RETRANSMIT_INTERVAL;
+            var nextHeartbeat = System.currentTimeMillis();
+            while (true) {
+                var deadline = Math.min(nextRetransmit, nextHeartbeat);
+                var first = inbox.poll(
+                    Math.max(deadline - System.currentTimeMillis(), 1), TimeUnit.MILLISECONDS
+                );
+                if (System.currentTimeMillis() >= nextHeartbeat) {
+                    for (var group : groupTable.values()) {
+                        group.broadcastState();
+                    }
+                    // an empty tracker still heartbeats to be known available
+                    if (groupTable.isEmpty()) {
+                        heartbeat();
+                    }
+                    nextHeartbeat = System.currentTimeMillis() + FailureDetector.HEARTBEAT_INTERVAL;
+                }
+
+                var nowLeading = leader() == index;
+                if (nowLeading && !leading) {
+                    // views may be accepted but not committed by previous leader, so collect 
+                    // them in a new term, propose the newest again and push it to every 
+                    // subscriber once committed
+                    term = nextTerm();
+                    log.info("become leader: term = " + term + ", groups = " + groupTable.size());
+                    leading = true;
+                    for (var group : groupTable.values()) {
+                        group.prepare();
+                    }
+                } else if (!nowLeading && leading) {
+                    stepDown();
+                }
+
+                if (System.currentTimeMillis() >= nextRetransmit) {
+                    for (var group : groupTable.values()) {
+                        group.retransmit();
+                    }
+                    nextRetransmit = System.currentTimeMillis() + RETRANSMIT_INTERVAL;
+                }
+
+                if (first != null) {
+                    batch.add(first);
+                    inbox.drainTo(batch, BATCH - 1);
+                    for (var inbound : batch) {
+                        handle(inbound.remoteAddr(), inbound.msg());
+                    }
+                    batch.clear();
+                }
+                outbox.flush(channelList.get(0));
+            }
+        }
+
+        // a parser returns the buffer to its receiver's pool, so no datagram is copied and a 
+        // receiver runs ahead of its parsers by at most POOLED datagrams
+        private void receive(DatagramChannel channel) {
+            try {
+                var pool = new ArrayBlockingQueue<ByteBuffer>(POOLED);
+                for (var i = 0; i < POOLED && PARSERS > 0; i += 1) {
+                    pool.add(ByteBuffer.allocateDirect(Transport.MAX_DATAGRAM));
+                }
+                while (true) {
+                    if (PARSERS == 0) {
+                        var buf = Transport.datagramBuffer();
+                        parse(channel.receive(buf), buf.flip());
+                        continue;
+                    }
+                    var buf = pool.take().clear();
+                    var remoteAddr = channel.receive(buf);
+                    parserList.get(Math.floorMod(remoteAddr.hashCode(), PARSERS)).execute(() -> {
+                        try {
+                            parse(remoteAddr, buf.flip());
+                            pool.add(buf);
+                        } catch (Exception e) {
+                            log.throwing(Server.class.getName(), "parse", e);
+                            System.exit(1);
+                        }
+                    });
+                }
+            } catch (Exception e) {
+                log.throwing(Server.class.getName(), "receive", e);
+                System.exit(1);
+            }
+        }
+
+        private void parse(SocketAddress remoteAddr, ByteBuffer buf) throws Exception {
+            for (var msg : Transport.parseAll(buf)) {
+                inbox.add(new Inbound(remoteAddr, msg));
+            }
+        }
+
+        // recompute shard map on view change of `changed`, and push current view to its 
+        // subscribers and to those of every group whose owned shards moved; a failover that 
+        // only moves a primary is not pushed to other groups, whose primaries query for the 
+        // newer map once they fail to reach the old primary
+        private void updateShardMap(Group changed) {
+            var version = 0;
+            var primaryTable = new TreeMap<String, InetSocketAddress>();
+            for (var group : groupTable.values()) {
+                version += group.view.id();
+                if (group.view.id() > 0) {
+                    primaryTable.put(group.name, group.view.serverAddr());
+                }
+            }
+            var prevMap = shardMap;
+            shardMap = ShardMap.compute(version, primaryTable);
+            if (!shardMap.sameAs(prevMap)) {
+                log.info(
+                    "shard map change: version = " + version + ", groups = " + primaryTable.keySet()
+                );
+            }
+            for (var group : groupTable.values()) {
+                if (
+                    group == changed || 
+                    group.committed != null && group.committed.id() > 0 && 
+                    !prevMap.shardsOf(group.name).equals(shardMap.shardsOf(group.name))
+                ) {
+                    group.pushAll();
+                }
+            }
+        }
+
+        private void heartbeat() {
+            for (var i = 0; i < peerAddrs.size(); i += 1) {
+                if (i != index) {
+                    outbox.add(
+                        peerAddrs.get(i), Transport.TrackerStateMessage.TYPE, 
+                        new Transport.TrackerStateMessage(
+                            index, term, 0, null, new View(0, null, List.of(), null, List.of())
+                        )
+                    );
+                }
+            }
+        }
+
+        private void handle(SocketAddress remoteAddr, Object message) {
+            String group;
+            if (message instanceof Transport.TrackerStateMessage msg) {
+                detector.heartbeat(msg.index());
+                if (msg.term() > term) {
+                    term = msg.term();
+                    if (leading) {
+                        stepDown();  // leads again in a newer term if still first available
+                    }
+                }
+                group = msg.group();
+            } else if (message instanceof Transport.TrackerAckMessage msg) {
+                group = msg.group();
+            } else if (message instanceof Transport.QueryMessage msg) {
+                group = msg.group();
+            } else if (message instanceof Transport.PlayerFailMessage msg) {
+                group = msg.group();
+            } else if (message instanceof Transport.ViewAckMessage msg) {
+                group = msg.group();
+            } else {
+                throw new RuntimeException();
+            }
+            if (group != null) {
+                groupTable.computeIfAbsent(group, Group::new).handle(remoteAddr, message);
             }
-            Transport.send(
-                channel, remoteAddr, Transport.ViewMessage.TYPE, 
-                new Transport.ViewMessage(view, n, k)
-            );
         }
     }
 
     private DatagramChannel channel;
+    private List<InetSocketAddress> trackerAddrs;
+    private String group;
     private String name;
     private InetSocketAddress addr;
-    public int n, k;
-    public Tracker(String name, InetSocketAddress addr, InetSocketAddress trackerAddr) throws Exception {
+    public volatile int n, k, replicas;
+    private View latestView;  // guarded by this, newest view pushed by tracker
+    private ShardMap latestShardMap;  // guarded by this, newest shard map pushed by tracker
+    private int receivedId = -1;  // id of last view returned by receiveView
+    // guarded by this, requests sent to every tracker and resent until a view as new as 
+    // `answerId` arrives, since only leader tracker answers and it may fail any time
+    private final ArrayList<Request> outstanding = new ArrayList<>();
+    private static record Request(int msgType, Transport.Message msg, int answerId) {}
+
+    public Tracker(
+        String group, String name, InetSocketAddress addr, InetSocketAddress trackerAddr
+    ) throws Exception {
         channel = DatagramChannel.open();
-        channel.connect(trackerAddr);
+        channel.bind(null);
+        channel.configureBlocking(false);
+        trackerAddrs = trackerAddrs();
+        if (!trackerAddrs.contains(trackerAddr)) {
+            trackerAddrs.add(0, trackerAddr);
+        }
+        this.group = group;
         this.name = name;
         this.addr = addr;
+        var receiver = new Thread(this::receive, "tracker-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
     }
 
     public void query() throws Exception {
-        Transport.send(
-            channel, Transport.QueryMessage.TYPE, 
-            new Transport.QueryMessage(name, addr)
-        );
+        request(Transport.QueryMessage.TYPE, new Transport.QueryMessage(group, name, addr), 0);
     }
 
     public void playerFail(int viewId, String failed, String nextBackup) throws Exception {
-        Transport.send(
-            channel, Transport.PlayerFailMessage.TYPE,
-            new Transport.PlayerFailMessage(viewId, failed, nextBackup)
+        request(
+            Transport.PlayerFailMessage.TYPE,
+            new Transport.PlayerFailMessage(group, viewId, failed, nextBackup), viewId + 1
         );
     }
 
-    public View receiveView() throws Exception {
-        var buf = ByteBuffer.allocate(1024);
-        channel.read(buf);
-        buf.flip();
-        int msgType = buf.getInt(), msgLen = buf.getInt();
-        assert msgType == Transport.ViewMessage.TYPE;
-        assert msgLen == buf.remaining();
-        var msg = (Transport.ViewMessage) Transport.parse(buf);
-        log.fine(msg.toString());
-        n = msg.n();
-        k = msg.k();
-        return msg.view();
+    private void request(int msgType, Transport.Message msg, int answerId) throws Exception {
+        synchronized (this) {
+            if (latestView == null || latestView.id() < answerId) {
+                outstanding.add(new Request(msgType, msg, answerId));
+            }
+        }
+        for (var trackerAddr : trackerAddrs) {
+            Transport.send(channel, trackerAddr, msgType, msg);
+        }
+    }
+
+    // ack every pushed view, keep the newest one, and resend unanswered requests
+    private void receive() {
+        try {
+            var selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            var nextRetransmit = System.currentTimeMillis() + RETRANSMIT_INTERVAL;
+            while (true) {
+                selector.select(Math.max(nextRetransmit - System.currentTimeMillis(), 1));
+                selector.selectedKeys().clear();
+                if (System.currentTimeMillis() >= nextRetransmit) {
+                    ArrayList<Request> requests;
+                    synchronized (this) {
+                        requests = new ArrayList<>(outstanding);
+                    }
+                    for (var request : requests) {
+                        for (var trackerAddr : trackerAddrs) {
+                            Transport.send(channel, trackerAddr, request.msgType(), request.msg());
+                        }
+                    }
+                    nextRetransmit = System.currentTimeMillis() + RETRANSMIT_INTERVAL;
+                }
+
+                while (true) {
+                    var buf = Transport.datagramBuffer();
+                    SocketAddress remoteAddr;
+                    try {
+                        remoteAddr = channel.receive(buf);
+                    } catch (IOException e) {
+                        // Logger.getGlobal().throwing(Tracker.class.getName(), "receive", e);
+                        log.info("ignore exception and expect tracker reachable soon");
+                        break;
+                    }
+                    if (remoteAddr == null) {
+                        break;
+                    }
+                    for (var message : Transport.parseAll(buf.flip())) {
+                        var msg = (Transport.ViewMessage) message;
+                        Transport.send(
+                            channel, remoteAddr, Transport.ViewAckMessage.TYPE,
+                            new Transport.ViewAckMessage(
+                                group, msg.view().id(), msg.shardMap().version()
+                            )
+                        );
+                        synchronized (this) {
+                            outstanding.removeIf(request -> request.answerId() <= msg.view().id());
+                            if (
+                                latestShardMap == null || 
+                                msg.shardMap().version() > latestShardMap.version()
+                            ) {
+                                latestShardMap = msg.shardMap();
+                            }
+                            if (latestView == null || msg.view().id() > latestView.id()) {
+                                log.fine(msg.toString());
+                                n = msg.n();
+                                k = msg.k();
+                                replicas = msg.replicas();
+                                latestView = msg.view();
+                                notifyAll();
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.throwing(Tracker.class.getName(), "receive", e);
+            System.exit(1);
+        }
+    }
+
+    // null before first view
+    public synchronized ShardMap shardMap() {
+        return latestShardMap;
+    }
+
+    // next view newer than the one returned last time
+    public synchronized View receiveView() throws Exception {
+        awaitView(receivedId);
+        receivedId = latestView.id();
+        return latestView;
+    }
+
+    // block until there is a view newer than viewId, querying again every RESUBSCRIBE_INTERVAL 
+    // since leader drops a subscriber that missed MAX_RETRANSMIT pushes, and would push it 
+    // nothing more until it queries
+    public synchronized void awaitView(int viewId) throws Exception {
+        while (latestView == null || latestView.id() <= viewId) {
+            wait(RESUBSCRIBE_INTERVAL);
+            if (latestView == null || latestView.id() <= viewId) {
+                query();
+            }
+        }
     }
 }
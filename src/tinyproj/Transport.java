@@ -2,128 +2,863 @@ import java.io.*;
 import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 import java.util.logging.*;
 
 public class Transport {
+    // every message encodes its own fields, and is decoded by `parse` according to its TYPE; 
+    // one with an array field prints it by length, and is never compared, since a record 
+    // takes an array's identity for its equals and hashCode
+    public interface Message {
+        void write(ByteBuffer buf);
+    }
+
     public static record QueryMessage(
+        String group,
         String name, 
         InetSocketAddress addr
-    ) implements Serializable {
+    ) implements Message {
         public static final int TYPE = 1;
+
+        public void write(ByteBuffer buf) {
+            putString(buf, group);
+            putString(buf, name);
+            putAddress(buf, addr);
+        }
+
+        static QueryMessage read(ByteBuffer buf) {
+            return new QueryMessage(getString(buf), getString(buf), getAddress(buf));
+        }
     }
 
     public static record PlayerFailMessage(
+        String group,
         int viewId,
         String failed,
         String nextBackup
-    ) implements Serializable {
+    ) implements Message {
         public static final int TYPE = 2;
+
+        public void write(ByteBuffer buf) {
+            putString(buf, group);
+            buf.putInt(viewId);
+            putString(buf, failed);
+            putString(buf, nextBackup);
+        }
+
+        static PlayerFailMessage read(ByteBuffer buf) {
+            return new PlayerFailMessage(getString(buf), buf.getInt(), getString(buf), getString(buf));
+        }
     }
 
     public static record ViewMessage(
         Tracker.View view,
         int n,
-        int k
-    ) implements Serializable {
+        int k,
+        int replicas,
+        Tracker.ShardMap shardMap
+    ) implements Message {
         public static final int TYPE = 3;
+
+        public void write(ByteBuffer buf) {
+            view.write(buf);
+            buf.putInt(n).putInt(k).putInt(replicas);
+            shardMap.write(buf);
+        }
+
+        static ViewMessage read(ByteBuffer buf) {
+            return new ViewMessage(
+                Tracker.View.read(buf), buf.getInt(), buf.getInt(), buf.getInt(), 
+                Tracker.ShardMap.read(buf)
+            );
+        }
     }
 
     public static record HelloMessage(
         String name
-    ) implements Serializable {
+    ) implements Message {
         public static final int TYPE = 4;
+
+        public void write(ByteBuffer buf) {
+            putString(buf, name);
+        }
+
+        static HelloMessage read(ByteBuffer buf) {
+            return new HelloMessage(getString(buf));
+        }
     }
 
     public static record InitBackupRequestMessage(
-        int viewId
-    ) implements Serializable {
+        int viewId,
+        String name
+    ) implements Message {
         public static final int TYPE = 5;
+
+        public void write(ByteBuffer buf) {
+            buf.putInt(viewId);
+            putString(buf, name);
+        }
+
+        static InitBackupRequestMessage read(ByteBuffer buf) {
+            return new InitBackupRequestMessage(buf.getInt(), getString(buf));
+        }
     }
 
+    // bytes [from, from + data.length) of primary's state encoded at one seq, `size` bytes 
+    // in all; backup reads the app once it has the last chunk
     public static record InitBackupReplyMessage(
-        App app
-    ) implements Serializable {
+        int size,
+        int from,
+        byte[] data
+    ) implements Message {
         public static final int TYPE = 6;
+
+        public void write(ByteBuffer buf) {
+            buf.putInt(size).putInt(from).putInt(data.length).put(data);
+        }
+
+        static InitBackupReplyMessage read(ByteBuffer buf) {
+            int size = buf.getInt(), from = buf.getInt();
+            var data = new byte[buf.getInt()];
+            buf.get(data);
+            return new InitBackupReplyMessage(size, from, data);
+        }
+
+        public String toString() {
+            return String.format(
+                "InitBackupReplyMessage[size=%d, from=%d, data=%d bytes]", size, from, data.length
+            );
+        }
     }
 
+    // mutations with seq in (seq - mutations.size(), seq]
     public static record SyncMessage(
-        App app
-    ) implements Serializable {
+        long seq,
+        List<App.Mutation> mutations
+    ) implements Message {
         public static final int TYPE = 7;
+
+        public void write(ByteBuffer buf) {
+            buf.putLong(seq).putInt(mutations.size());
+            for (var mutation : mutations) {
+                mutation.write(buf);
+            }
+        }
+
+        static SyncMessage read(ByteBuffer buf) {
+            var seq = buf.getLong();
+            var mutations = new ArrayList<App.Mutation>();
+            for (int i = buf.getInt(); i > 0; i -= 1) {
+                mutations.add(App.Mutation.read(buf));
+            }
+            return new SyncMessage(seq, mutations);
+        }
     }
 
-    public static record SyncOkMessage() implements Serializable {
+    // highest seq applied by backup, with whether it has just skipped a batch out of order
+    public static record SyncOkMessage(
+        long seq,
+        boolean gap
+    ) implements Message {
         public static final int TYPE = 8;
+
+        public void write(ByteBuffer buf) {
+            buf.putLong(seq).put((byte) (gap ? 1 : 0));
+        }
+
+        static SyncOkMessage read(ByteBuffer buf) {
+            return new SyncOkMessage(buf.getLong(), buf.get() != 0);
+        }
     }
 
+    // `player` is the sender's id in registry of the primary, as assigned by HelloOk
     public static record HeartbeatMessage(
-        String name
-    ) implements Serializable {
+        int player
+    ) implements Message {
         public static final int TYPE = 9;
+
+        public void write(ByteBuffer buf) {
+            buf.putInt(player);
+        }
+
+        static HeartbeatMessage read(ByteBuffer buf) {
+            return new HeartbeatMessage(buf.getInt());
+        }
     }
 
+    // `lease` is ms the receiver may serve reads for since its heartbeat, only granted to backup
     public static record HeartbeatOkMessage(
-        int viewId
-    ) implements Serializable {
+        int viewId,
+        long lease
+    ) implements Message {
         public static final int TYPE = 10;
+
+        public void write(ByteBuffer buf) {
+            buf.putInt(viewId).putLong(lease);
+        }
+
+        static HeartbeatOkMessage read(ByteBuffer buf) {
+            return new HeartbeatOkMessage(buf.getInt(), buf.getLong());
+        }
+    }
+
+    // full state, for backup falls behind the mutation log
+    public static record SnapshotMessage(
+        App app
+    ) implements Message {
+        public static final int TYPE = 11;
+
+        public void write(ByteBuffer buf) {
+            app.write(buf);
+        }
+
+        static SnapshotMessage read(ByteBuffer buf) {
+            return new SnapshotMessage(App.read(buf));
+        }
+    }
+
+    // reply of Hello, primary is serving
+    // `player` is the id primary interned the greeting node's name as, used on the connection
+    public static record HelloOkMessage(
+        int viewId,
+        int player
+    ) implements Message {
+        public static final int TYPE = 12;
+
+        public void write(ByteBuffer buf) {
+            buf.putInt(viewId).putInt(player);
+        }
+
+        static HelloOkMessage read(ByteBuffer buf) {
+            return new HelloOkMessage(buf.getInt(), buf.getInt());
+        }
+    }
+
+    public static record ViewAckMessage(
+        String group,
+        int viewId,
+        int mapVersion
+    ) implements Message {
+        public static final int TYPE = 13;
+
+        public void write(ByteBuffer buf) {
+            putString(buf, group);
+            buf.putInt(viewId).putInt(mapVersion);
+        }
+
+        static ViewAckMessage read(ByteBuffer buf) {
+            return new ViewAckMessage(getString(buf), buf.getInt(), buf.getInt());
+        }
+    }
+
+    // replicated tracker state of a group, broadcast by every tracker as heartbeat and by leader 
+    // on change, with null group for a tracker without any group yet
+    // `term` is the highest term sender has seen, and `viewTerm` the one its view was 
+    // accepted in
+    public static record TrackerStateMessage(
+        int index,
+        int term,
+        int viewTerm,
+        String group,
+        Tracker.View view
+    ) implements Message {
+        public static final int TYPE = 14;
+
+        public void write(ByteBuffer buf) {
+            buf.putInt(index);
+            buf.putInt(term);
+            buf.putInt(viewTerm);
+            putString(buf, group);
+            view.write(buf);
+        }
+
+        static TrackerStateMessage read(ByteBuffer buf) {
+            return new TrackerStateMessage(
+                buf.getInt(), buf.getInt(), buf.getInt(), getString(buf), Tracker.View.read(buf)
+            );
+        }
+    }
+
+    public static record TrackerAckMessage(
+        int index,
+        int term,
+        String group,
+        int viewId
+    ) implements Message {
+        public static final int TYPE = 15;
+
+        public void write(ByteBuffer buf) {
+            buf.putInt(index);
+            buf.putInt(term);
+            putString(buf, group);
+            buf.putInt(viewId);
+        }
+
+        static TrackerAckMessage read(ByteBuffer buf) {
+            return new TrackerAckMessage(buf.getInt(), buf.getInt(), getString(buf), buf.getInt());
+        }
+    }
+
+    // mutations of players in a shard owned by receiver's group, from primary of another group; 
+    // with `move` set they are all players of a shard handed over by its previous owner
+    public static record ShardMutationMessage(
+        long id,
+        int shard,
+        boolean move,
+        List<App.Mutation> mutations
+    ) implements Message {
+        public static final int TYPE = 16;
+
+        public void write(ByteBuffer buf) {
+            buf.putLong(id).putInt(shard).put((byte) (move ? 1 : 0));
+            buf.putInt(mutations.size());
+            for (var mutation : mutations) {
+                mutation.write(buf);
+            }
+        }
+
+        static ShardMutationMessage read(ByteBuffer buf) {
+            long id = buf.getLong();
+            int shard = buf.getInt();
+            var move = buf.get() != 0;
+            var mutations = new ArrayList<App.Mutation>();
+            for (int i = buf.getInt(); i > 0; i -= 1) {
+                mutations.add(App.Mutation.read(buf));
+            }
+            return new ShardMutationMessage(id, shard, move, mutations);
+        }
+    }
+
+    // reply of ShardMutation once synced, or rejected as receiver does not own the shard (yet); 
+    // `result` is the receiver's result of a forwarded request, opaque here and empty otherwise
+    public static record ShardAckMessage(
+        long id,
+        boolean ok,
+        byte[] result
+    ) implements Message {
+        public static final int TYPE = 17;
+
+        public void write(ByteBuffer buf) {
+            buf.putLong(id).put((byte) (ok ? 1 : 0)).putInt(result.length).put(result);
+        }
+
+        static ShardAckMessage read(ByteBuffer buf) {
+            long id = buf.getLong();
+            boolean ok = buf.get() != 0;
+            var result = new byte[buf.getInt()];
+            buf.get(result);
+            return new ShardAckMessage(id, ok, result);
+        }
+
+        public String toString() {
+            return String.format(
+                "ShardAckMessage[id=%d, ok=%b, result=%d bytes]", id, ok, result.length
+            );
+        }
+    }
+
+    // read-only query against App, served by primary, or by backup while it holds a lease
+    public static record ReadMessage(
+        long id,
+        String name
+    ) implements Message {
+        public static final int TYPE = 18;
+
+        public void write(ByteBuffer buf) {
+            buf.putLong(id);
+            putString(buf, name);
+        }
+
+        static ReadMessage read(ByteBuffer buf) {
+            return new ReadMessage(buf.getLong(), getString(buf));
+        }
+    }
+
+    // status, cell and score of the player as of `seq`, laid out like a reply's result; not ok 
+    // if the node may not serve reads, so reader retries with primary
+    public static record ReadReplyMessage(
+        long id,
+        boolean ok,
+        long seq,
+        byte[] result
+    ) implements Message {
+        public static final int TYPE = 19;
+
+        public void write(ByteBuffer buf) {
+            buf.putLong(id).put((byte) (ok ? 1 : 0)).putLong(seq);
+            buf.putInt(result.length).put(result);
+        }
+
+        static ReadReplyMessage read(ByteBuffer buf) {
+            long id = buf.getLong();
+            boolean ok = buf.get() != 0;
+            long seq = buf.getLong();
+            var result = new byte[buf.getInt()];
+            buf.get(result);
+            return new ReadReplyMessage(id, ok, seq, result);
+        }
+
+        public String toString() {
+            return String.format(
+                "ReadReplyMessage[id=%d, ok=%b, seq=%d, result=%d bytes]", 
+                id, ok, seq, result.length
+            );
+        }
     }
 
+    // asks a backup for its state, answered with SnapshotMessage, by a new primary which takes 
+    // the most advanced one of its backups
+    public static record PullMessage(
+        int viewId
+    ) implements Message {
+        public static final int TYPE = 20;
+
+        public void write(ByteBuffer buf) {
+            buf.putInt(viewId);
+        }
+
+        static PullMessage read(ByteBuffer buf) {
+            return new PullMessage(buf.getInt());
+        }
+    }
+
+    // application request of `player`, id as in HeartbeatMessage; ids are assigned by the 
+    // client in increasing order, so it may pipeline requests and match replies, which come 
+    // back in the same order; ids restart with every `session`, i.e. client process
+    public static record RequestMessage(
+        int player,
+        long session,
+        long id,
+        int op
+    ) implements Message {
+        public static final int TYPE = 21;
+
+        public void write(ByteBuffer buf) {
+            buf.putInt(player).putLong(session).putLong(id).putInt(op);
+        }
+
+        static RequestMessage read(ByteBuffer buf) {
+            return new RequestMessage(buf.getInt(), buf.getLong(), buf.getLong(), buf.getInt());
+        }
+    }
+
+    // sent once App state as of `seq` is synced with backups, with `result` written by the 
+    // op that handled the request and opaque here; a retried request is answered with the 
+    // seq and result of its first run
+    public static record ReplyMessage(
+        long id,
+        long seq,
+        byte[] result
+    ) implements Message {
+        public static final int TYPE = 22;
+
+        public void write(ByteBuffer buf) {
+            buf.putLong(id).putLong(seq).putInt(result.length).put(result);
+        }
+
+        static ReplyMessage read(ByteBuffer buf) {
+            long id = buf.getLong(), seq = buf.getLong();
+            var result = new byte[buf.getInt()];
+            buf.get(result);
+            return new ReplyMessage(id, seq, result);
+        }
+
+        public String toString() {
+            return String.format(
+                "ReplyMessage[id=%d, seq=%d, result=%d bytes]", id, seq, result.length
+            );
+        }
+    }
+
+    // `buffer` is positioned right after the 8-byte header, as left by callers
     public static Object parse(ByteBuffer buffer) throws Exception {
-        var data = new byte[buffer.remaining()];
-        buffer.get(data);
-        var in = new ObjectInputStream(new ByteArrayInputStream(data));
-        return in.readObject();
+        int msgType = buffer.getInt(buffer.position() - 8);
+        switch (msgType) {
+            case QueryMessage.TYPE: return QueryMessage.read(buffer);
+            case PlayerFailMessage.TYPE: return PlayerFailMessage.read(buffer);
+            case ViewMessage.TYPE: return ViewMessage.read(buffer);
+            case HelloMessage.TYPE: return HelloMessage.read(buffer);
+            case InitBackupRequestMessage.TYPE: return InitBackupRequestMessage.read(buffer);
+            case InitBackupReplyMessage.TYPE: return InitBackupReplyMessage.read(buffer);
+            case SyncMessage.TYPE: return SyncMessage.read(buffer);
+            case SyncOkMessage.TYPE: return SyncOkMessage.read(buffer);
+            case HeartbeatMessage.TYPE: return HeartbeatMessage.read(buffer);
+            case HeartbeatOkMessage.TYPE: return HeartbeatOkMessage.read(buffer);
+            case SnapshotMessage.TYPE: return SnapshotMessage.read(buffer);
+            case HelloOkMessage.TYPE: return HelloOkMessage.read(buffer);
+            case ViewAckMessage.TYPE: return ViewAckMessage.read(buffer);
+            case TrackerStateMessage.TYPE: return TrackerStateMessage.read(buffer);
+            case TrackerAckMessage.TYPE: return TrackerAckMessage.read(buffer);
+            case ShardMutationMessage.TYPE: return ShardMutationMessage.read(buffer);
+            case ShardAckMessage.TYPE: return ShardAckMessage.read(buffer);
+            case ReadMessage.TYPE: return ReadMessage.read(buffer);
+            case ReadReplyMessage.TYPE: return ReadReplyMessage.read(buffer);
+            case PullMessage.TYPE: return PullMessage.read(buffer);
+            case RequestMessage.TYPE: return RequestMessage.read(buffer);
+            case ReplyMessage.TYPE: return ReplyMessage.read(buffer);
+            default:
+                throw new RuntimeException();
+        }
+    }
+
+    public static void putString(ByteBuffer buf, String s) {
+        if (s == null) {
+            buf.putInt(-1);
+            return;
+        }
+        var data = s.getBytes(StandardCharsets.UTF_8);
+        buf.putInt(data.length).put(data);
+    }
+
+    public static String getString(ByteBuffer buf) {
+        var len = buf.getInt();
+        if (len == -1) {
+            return null;
+        }
+        var data = new byte[len];
+        buf.get(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    public static void putAddress(ByteBuffer buf, InetSocketAddress addr) {
+        if (addr == null) {
+            buf.put((byte) 0);
+            return;
+        }
+        // raw address bytes, so decoding never hits name resolution
+        var data = addr.getAddress().getAddress();
+        buf.put((byte) data.length).put(data).putShort((short) addr.getPort());
+    }
+
+    public static InetSocketAddress getAddress(ByteBuffer buf) {
+        var len = buf.get();
+        if (len == 0) {
+            return null;
+        }
+        var data = new byte[len];
+        buf.get(data);
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(data), buf.getShort() & 0xffff);
+        } catch (UnknownHostException e) {
+            throw new RuntimeException(e);  // unreachable for 4/16-byte address
+        }
+    }
+
+    // a datagram may carry several frames back to back, see DatagramOutbox
+    public static List<Object> parseAll(ByteBuffer buffer) throws Exception {
+        var msgs = new ArrayList<Object>();
+        var limit = buffer.limit();
+        while (buffer.position() < limit) {
+            buffer.getInt();
+            var end = buffer.getInt() + buffer.position();
+            msgs.add(parse(buffer.limit(end)));
+            buffer.limit(limit).position(end);
+        }
+        return msgs;
+    }
+
+    // largest payload of a single UDP datagram
+    public static final int MAX_DATAGRAM = 65507;
+
+    // per-thread direct buffers reused by every message, grown on demand, so steady-state 
+    // traffic allocates nothing; a returned buffer is valid until next use on the same thread
+    private static final ThreadLocal<ByteBuffer> encodePool = 
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(4096));
+    private static final ThreadLocal<ByteBuffer> receivePool = 
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(4096));
+
+    private static ByteBuffer pooled(ThreadLocal<ByteBuffer> pool, int capacity) {
+        var buf = pool.get();
+        if (buf.capacity() < capacity) {
+            buf = ByteBuffer.allocateDirect(Math.max(capacity, buf.capacity() * 2));
+            pool.set(buf);
+        }
+        return buf.clear();
+    }
+
+    public static ByteBuffer datagramBuffer() {
+        return pooled(receivePool, MAX_DATAGRAM);
     }
 
     public static ByteBuffer socketReceiveRaw(ReadableByteChannel channel) throws Exception {
-        var buf = ByteBuffer.allocate(1024).limit(8);
+        var buf = pooled(receivePool, 8).limit(8);
         try {
-            while (buf.remaining() != 0) {
-                if (channel.read(buf) == -1) {
-                    throw new IOException();
-                }
+            readFully(channel, buf);
+            int msgType = buf.getInt(0), msgLen = buf.getInt(4);
+            if (msgLen < 0) {
+                throw new IOException("bad frame length: " + msgLen);
             }
-            buf.flip();
-            int msgType = buf.getInt(), msgLen = buf.getInt();
-            buf.limit(8 + msgLen);
-            while (buf.remaining() != 0) {
-                if (channel.read(buf) == -1) {
-                    throw new IOException();
-                }
+            if (buf.capacity() < 8 + msgLen) {
+                buf = pooled(receivePool, 8 + msgLen).putInt(msgType).putInt(msgLen);
             }
+            // header kept in front for callers
+            readFully(channel, buf.limit(8 + msgLen));
+            return buf.flip();
         } catch (IOException e) {
             // Logger.getGlobal().throwing(Transport.class.getName(), "socketReceiveRaw", e);
             Logger.getGlobal().info("ignore exception and expect failure detected soon");
             return null;
         }
-        return buf.flip();
     }
 
-    private static ByteBuffer dump(int msgType, Object msg) throws Exception {
-        var buf = ByteBuffer.allocate(1024);
-        buf.putInt(msgType).putInt(-1);
-        var byteOut = new ByteArrayOutputStream();
-        var out = new ObjectOutputStream(byteOut);
-        out.writeObject(msg);
-        out.close();
-        var msgLen = byteOut.size();
-        assert buf.remaining() >= msgLen;
-        buf.putInt(4, msgLen);
-        buf.put(byteOut.toByteArray());        
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.remaining() != 0) {
+            if (channel.read(buf) == -1) {
+                throw new IOException();
+            }
+        }
+    }
+
+    // accumulates partial reads of a non-blocking channel and cuts them into frames, 
+    // with one direct buffer per connection
+    public static class FrameDecoder {
+        private ByteBuffer buf = ByteBuffer.allocateDirect(4096);
+        private int start = 0, end = 0;  // unconsumed data in [start, end)
+
+        // read what is available without blocking, false if channel is closed or broken
+        public boolean read(ReadableByteChannel channel) {
+            if (start != 0) {
+                buf.limit(end).position(start);
+                buf.compact();
+                end -= start;
+                start = 0;
+            }
+            if (end == buf.capacity()) {
+                grow(buf.capacity() * 2);
+            }
+            buf.limit(buf.capacity()).position(end);
+            try {
+                var n = channel.read(buf);
+                end = buf.position();
+                return n != -1;
+            } catch (IOException e) {
+                // Logger.getGlobal().throwing(Transport.class.getName(), "FrameDecoder.read", e);
+                Logger.getGlobal().info("ignore exception and expect failure detected soon");
+                return false;
+            }
+        }
+
+        // next complete frame with header in front, valid until next call, or null
+        public ByteBuffer next() throws IOException {
+            if (end - start < 8) {
+                return null;
+            }
+            buf.limit(end);  // drop window of previous frame
+            int msgLen = buf.getInt(start + 4);
+            if (msgLen < 0) {
+                throw new IOException("bad frame length: " + msgLen);
+            }
+            if (end - start < 8 + msgLen) {
+                if (buf.capacity() < 8 + msgLen) {
+                    grow(8 + msgLen);  // make room for the whole frame at once
+                }
+                return null;
+            }
+            buf.limit(start + 8 + msgLen).position(start);
+            start += 8 + msgLen;
+            return buf;
+        }
+
+        private void grow(int capacity) {
+            var bigger = ByteBuffer.allocateDirect(capacity);
+            bigger.put(buf.limit(end).position(start));
+            end -= start;
+            start = 0;
+            buf = bigger;
+        }
+    }
+
+    // non-blocking connection owned by one selector: inbound frames are decoded from partial 
+    // reads, outbound frames are appended by any thread into pooled chunks and written 
+    // together with a gathering write when the selector reports writability
+    public static class Connection {
+        private static final int CHUNK = 16 * 1024;
+        public final SocketChannel channel;
+        public final FrameDecoder decoder;
+        private SelectionKey key;
+        // guarded by this, chunks in read mode and only the last one is appended
+        private final ArrayDeque<ByteBuffer> chunks;
+        private final ArrayDeque<ByteBuffer> freeChunks;
+        private ByteBuffer[] gather;
+        private boolean closed;
+
+        public Connection(SocketChannel channel) {
+            this.channel = channel;
+            decoder = new FrameDecoder();
+            chunks = new ArrayDeque<>();
+            freeChunks = new ArrayDeque<>();
+            gather = new ByteBuffer[4];
+            closed = false;
+        }
+
+        public synchronized void register(Selector selector) throws IOException {
+            if (closed) {
+                return;  // closed before its selector took it
+            }
+            var ops = SelectionKey.OP_READ | (chunks.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            key = channel.register(selector, ops, this);
+        }
+
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        // peer sees EOF, and a registered channel is released by its selector's next select
+        public synchronized void close() {
+            closed = true;
+            chunks.clear();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Logger.getGlobal().info("ignore exception and expect failure detected soon");
+            }
+            notifyAll();
+        }
+
+        // blocks a bulk sender until at most `limit` bytes are queued, false if closed
+        public synchronized boolean awaitQueued(int limit) throws InterruptedException {
+            while (!closed) {
+                var queued = 0;
+                for (var chunk : chunks) {
+                    queued += chunk.remaining();
+                }
+                if (queued <= limit) {
+                    return true;
+                }
+                wait();
+            }
+            return false;
+        }
+
+        public synchronized void send(int msgType, Message msg) throws Exception {
+            if (closed) {
+                return;  // heartbeat to cover failure
+            }
+            var frame = dump(msgType, msg);
+            var wasEmpty = chunks.isEmpty();
+            var tail = chunks.peekLast();
+            if (tail == null || tail.capacity() - tail.limit() < frame.remaining()) {
+                tail = frame.remaining() > CHUNK || freeChunks.isEmpty() ? 
+                    ByteBuffer.allocateDirect(Math.max(CHUNK, frame.remaining())) : 
+                    freeChunks.poll();
+                chunks.addLast(tail.clear().limit(0));
+            }
+            var pos = tail.position();
+            tail.position(tail.limit()).limit(tail.capacity());
+            tail.put(frame);
+            tail.limit(tail.position()).position(pos);
+            if (wasEmpty && key != null) {
+                key.interestOpsOr(SelectionKey.OP_WRITE);
+                key.selector().wakeup();
+            }
+        }
+
+        // called by owner selector on writable, false if channel is broken
+        public synchronized boolean flush() {
+            try {
+                while (!chunks.isEmpty()) {
+                    if (gather.length < chunks.size()) {
+                        gather = new ByteBuffer[chunks.size() * 2];
+                    }
+                    var n = channel.write(chunks.toArray(gather), 0, chunks.size());
+                    while (!chunks.isEmpty() && !chunks.peekFirst().hasRemaining()) {
+                        var chunk = chunks.poll();
+                        if (chunk.capacity() == CHUNK) {
+                            freeChunks.add(chunk);
+                        }
+                    }
+                    notifyAll();  // bulk sender waiting for room
+                    if (n == 0) {
+                        return true;  // socket buffer full, wait for next writability
+                    }
+                }
+                Arrays.fill(gather, null);
+                key.interestOpsAnd(~SelectionKey.OP_WRITE);
+                return true;
+            } catch (IOException e) {
+                // Logger.getGlobal().throwing(Transport.class.getName(), "Connection.flush", e);
+                Logger.getGlobal().info("ignore exception and expect failure detected soon");
+                return false;
+            }
+        }
+    }
+
+    private static ByteBuffer dump(int msgType, Message msg) throws Exception {
+        // encode straight into the frame, retry with doubled capacity on overflow
+        var buf = pooled(encodePool, 0);
+        while (true) {
+            try {
+                buf.putInt(msgType).putInt(-1);
+                msg.write(buf);
+                break;
+            } catch (BufferOverflowException e) {
+                buf = pooled(encodePool, buf.capacity() * 2);
+            }
+        }
+        buf.putInt(4, buf.position() - 8);
         return buf.flip();
     }
 
-    public static void send(WritableByteChannel channel, int msgType, Object msg) throws Exception {
+    // messages collected during a batch of work, sent on flush with all frames for the same 
+    // receiver coalesced into as few datagrams as fit
+    public static class DatagramOutbox {
+        private static record Entry(int msgType, Message msg) {}
+        private final LinkedHashMap<SocketAddress, ArrayList<Entry>> entryTable = new LinkedHashMap<>();
+
+        public void add(SocketAddress remote, int msgType, Message msg) {
+            entryTable.computeIfAbsent(remote, r -> new ArrayList<>()).add(new Entry(msgType, msg));
+        }
+
+        public void flush(DatagramChannel channel) throws Exception {
+            var buf = pooled(encodePool, MAX_DATAGRAM);
+            for (var remoteEntry : entryTable.entrySet()) {
+                buf.clear().limit(MAX_DATAGRAM);
+                for (var entry : remoteEntry.getValue()) {
+                    var start = buf.position();
+                    try {
+                        buf.putInt(entry.msgType()).putInt(-1);
+                        entry.msg().write(buf);
+                    } catch (BufferOverflowException e) {
+                        if (start == 0) {
+                            throw new RuntimeException("message exceeds datagram");
+                        }
+                        // send the full datagram and encode this frame again into next one
+                        channel.send(buf.position(start).flip(), remoteEntry.getKey());
+                        buf.clear().limit(MAX_DATAGRAM);
+                        start = 0;
+                        buf.putInt(entry.msgType()).putInt(-1);
+                        entry.msg().write(buf);
+                    }
+                    buf.putInt(start + 4, buf.position() - start - 8);
+                }
+                channel.send(buf.flip(), remoteEntry.getKey());
+            }
+            entryTable.clear();
+        }
+    }
+
+    public static void send(WritableByteChannel channel, int msgType, Message msg) throws Exception {
         try {
-            channel.write(dump(msgType, msg));
+            var buf = dump(msgType, msg);
+            while (buf.remaining() != 0) {
+                channel.write(buf);
+            }
         } catch (IOException e) {
             // Logger.getGlobal().throwing(Transport.class.getName(), "send", e);
             Logger.getGlobal().info("ignore exception and expect failure detected soon");
         }
     }
 
+    public static void send(Connection conn, int msgType, Message msg) throws Exception {
+        conn.send(msgType, msg);
+    }
+
     public static void send(
-        DatagramChannel server, SocketAddress remote, int msgType, Object msg
+        DatagramChannel server, SocketAddress remote, int msgType, Message msg
     ) throws Exception {
         server.send(dump(msgType, msg), remote);
     }